@@ -0,0 +1,102 @@
+package cc.aguesuka.dht.action;
+
+import cc.aguesuka.dht.connection.Bucket;
+import cc.aguesuka.dht.connection.NodeId;
+import cc.aguesuka.util.inject.annotation.Config;
+import cc.aguesuka.util.inject.annotation.Init;
+import cc.aguesuka.util.inject.annotation.Inject;
+import cc.aguesuka.util.log.LogSetting;
+import cc.aguesuka.util.stop.WheelTimer;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * 路由表后台维护 http://www.bittorrent.org/beps/bep_0005.html#routing-table
+ * <p>
+ * 每隔一段时间执行一次:移除失效的节点,ping需要确认的节点,
+ * 对一段时间没有变化的桶用桶范围内的随机id发送find_node.
+ * 每次发送的报文数不超过{@code maintainer.budget},ping优先
+ *
+ * @author :yangmingyuxing
+ * 2026/10/18 18:20
+ */
+public class BucketMaintainer implements AutoCloseable {
+    private static Logger logger = Logger.getLogger(LogSetting.DEFAULT_NAME);
+    @Inject
+    private Bucket<InetSocketAddress> bucket;
+    @Inject
+    private DhtAction dhtAction;
+    @Inject
+    private WheelTimer timer;
+    /**
+     * 维护间隔ms
+     */
+    @Config("maintainer.interval")
+    private int interval;
+    /**
+     * 每次维护最多发送的报文数
+     */
+    @Config("maintainer.budget")
+    private int budget;
+    /**
+     * 超过该时间没有通信的节点需要ping确认
+     */
+    @Config("maintainer.questionTime")
+    private int questionTime;
+    /**
+     * 超过该时间没有变化的桶需要刷新
+     */
+    @Config("maintainer.refreshTime")
+    private int refreshTime;
+    private volatile boolean isStart;
+    private volatile WheelTimer.Task task;
+
+    @Init
+    private void init() {
+        isStart = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (isStart) {
+            task = timer.schedule(this::maintain, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 执行一次维护,只发送请求不等待回复,在定时器线程中执行
+     */
+    void maintain() {
+        try {
+            int evicted = bucket.evict();
+            List<Bucket.Node<InetSocketAddress>> questionable = bucket.getQuestionable(questionTime, budget);
+            for (Bucket.Node<InetSocketAddress> node : questionable) {
+                dhtAction.ping(node.getId(), node.getData());
+            }
+            int refreshed = 0;
+            for (NodeId target : bucket.getRefreshTargets(refreshTime, budget - questionable.size())) {
+                List<Bucket.Node<InetSocketAddress>> closest = bucket.get(target, 1);
+                if (!closest.isEmpty()) {
+                    dhtAction.findNode(closest.get(0).getData(), target);
+                    refreshed++;
+                }
+            }
+            logger.fine("路由表维护 移除:" + evicted + " ping:" + questionable.size() + " 刷新:" + refreshed
+                    + " 节点数:" + bucket.size());
+        } finally {
+            schedule();
+        }
+    }
+
+    @Override
+    public void close() {
+        isStart = false;
+        WheelTimer.Task current = task;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+}
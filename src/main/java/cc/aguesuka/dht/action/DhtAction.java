@@ -1,9 +1,10 @@
 package cc.aguesuka.dht.action;
 
 import cc.aguesuka.dht.connection.Bucket;
-import cc.aguesuka.dht.connection.DhtConnectionImpl;
+import cc.aguesuka.dht.connection.DhtConnection;
 import cc.aguesuka.dht.connection.DhtRequest;
-import cc.aguesuka.downloader.impl.DoMetaDataDownLoader;
+import cc.aguesuka.dht.connection.NodeId;
+import cc.aguesuka.util.AddressUtil;
 import cc.aguesuka.util.bencode.BencodeByteArray;
 import cc.aguesuka.util.bencode.BencodeMap;
 import cc.aguesuka.util.bencode.IBencode;
@@ -13,13 +14,20 @@ import cc.aguesuka.util.inject.annotation.Inject;
 import cc.aguesuka.util.log.LogSetting;
 import cc.aguesuka.util.stop.Timeout;
 
-import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,78 +39,200 @@ import static cc.aguesuka.dht.token.KrpcToken.*;
  */
 public class DhtAction {
     private static Logger logger = Logger.getLogger(LogSetting.DEFAULT_NAME);
+    /**
+     * compact node info 的长度,20字节id,4字节ip,2字节端口
+     */
+    private static final int COMPACT_NODE_LENGTH = NodeId.LENGTH + 6;
+    private static final int SELF_LOOKUP_MAX_ROUND = 8;
     @Inject
-    Bucket<BencodeByteArray, InetSocketAddress> bucket;
+    Bucket<InetSocketAddress> bucket;
     @Inject
-    DhtConnectionImpl connection;
+    DhtConnection<InetSocketAddress, BencodeMap> connection;
     @Config("dhtAction.timeout")
     private int timeout;
     @Config("bucket.self.id")
     private byte[] selfId;
     @Config("dhtAction.initAddress")
     private String initAddress;
-
-    private InetSocketAddress parserAddress(ByteBuffer byteBuffer) throws UnknownHostException {
-        byte[] host = new byte[4];
-        byteBuffer.get(host);
-        int port = 0xffff & byteBuffer.getShort();
-        return new InetSocketAddress(InetAddress.getByAddress(host), port);
-    }
+    /**
+     * 路由表中有这么多节点时结束初始化
+     */
+    @Config("dhtAction.bootstrap.nodeCount")
+    private int bootstrapNodeCount;
+    /**
+     * 初始化最长等待时间
+     */
+    @Config("dhtAction.bootstrap.timeout")
+    private int bootstrapTimeout;
 
     public List<InetSocketAddress> parserGetPeersResultValue(BencodeMap response) throws UnknownHostException {
         List<InetSocketAddress> result = new ArrayList<>();
+        for (long address : parserGetPeersValues(response)) {
+            result.add(AddressUtil.toAddress(address));
+        }
+        return result;
+    }
+
+    /**
+     * 解析get_peers回复中的values,不创建地址对象
+     *
+     * @param response 回复
+     * @return 压缩的地址, 见{@link AddressUtil}
+     */
+    public long[] parserGetPeersValues(BencodeMap response) {
         BencodeMap r = response.getBencodeMap(R);
-        if (r.containsKey(VALUES)) {
-            for (IBencode addr : r.getBencodeList(VALUES)) {
-                byte[] bytes = ((BencodeByteArray) addr).getBytes();
-                result.add(parserAddress(ByteBuffer.wrap(bytes)));
+        if (!r.containsKey(VALUES)) {
+            return new long[0];
+        }
+        List<IBencode> values = r.getBencodeList(VALUES);
+        long[] result = new long[values.size()];
+        int count = 0;
+        for (IBencode addr : values) {
+            byte[] bytes = ((BencodeByteArray) addr).getBytes();
+            if (bytes.length == AddressUtil.COMPACT_LENGTH) {
+                result[count++] = AddressUtil.read(ByteBuffer.wrap(bytes));
             }
         }
-        return result;
+        return count == result.length ? result : Arrays.copyOf(result, count);
     }
 
+    /**
+     * 并行解析和请求所有初始节点,路由表中有足够的节点或者全部请求结束后返回,
+     * 最多等待{@code dhtAction.bootstrap.timeout}.之后在后台向本机id迭代查询,填充离本机近的桶
+     */
     @Init
     private void init() {
         logger.fine("开始初始化node");
-        String splitChar = ";";
-        for (String s : initAddress.split(splitChar)) {
-            if (s.length() == 0) {
-                break;
+        CompletableFuture<Void> enough = new CompletableFuture<>();
+        if (bucket.size() >= bootstrapNodeCount) {
+            enough.complete(null);
+        }
+        List<String> routers = new ArrayList<>();
+        for (String s : initAddress.split(";")) {
+            if (s.length() > 0) {
+                routers.add(s);
+            }
+        }
+        List<CompletableFuture<Void>> requests = new ArrayList<>();
+        if (!routers.isEmpty()) {
+            ExecutorService resolver = Executors.newFixedThreadPool(routers.size(), runnable -> {
+                Thread thread = new Thread(runnable, "dhtAction.resolver");
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (String router : routers) {
+                String[] address = router.split(":");
+                requests.add(CompletableFuture
+                        .supplyAsync(() -> new InetSocketAddress(address[0], Integer.parseInt(address[1])), resolver)
+                        .thenCompose(socketAddress -> findNodeRequest(socketAddress, selfId))
+                        .handle((v, e) -> {
+                            if (e != null) {
+                                logger.log(Level.FINE, "初始节点" + router + "请求失败", e);
+                            }
+                            if (bucket.size() >= bootstrapNodeCount) {
+                                enough.complete(null);
+                            }
+                            return null;
+                        }));
             }
-            String[] address = s.split(":");
-            InetSocketAddress socketAddress = new InetSocketAddress(address[0], Integer.parseInt(address[1]));
-            try {
-                findNodeRequest(socketAddress, selfId);
-            } catch (IOException | RuntimeException e) {
-                logger.log(Level.WARNING, e.getMessage(), e);
+            // 已提交的解析任务执行完后线程结束
+            resolver.shutdown();
+        }
+        CompletableFuture<Void> all = CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0]));
+        all.thenRun(() -> enough.complete(null));
+        try {
+            enough.get(bootstrapTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.warning("初始化超时,当前节点数:" + bucket.size());
+        } catch (InterruptedException | ExecutionException e) {
+            logger.log(Level.WARNING, e.getMessage(), e);
+        }
+        logger.info("初始化完成,当前节点数:" + bucket.size());
+        all.thenRun(() -> selfLookup(new HashSet<>(), 0));
+    }
+
+    /**
+     * 向本机id迭代查询,每轮请求路由表中离本机最近并且没有请求过的节点,直到没有新节点或达到最大轮数
+     *
+     * @param visited 已经请求过的节点
+     * @param round   轮数
+     */
+    private void selfLookup(Set<NodeId> visited, int round) {
+        NodeId self = bucket.getSelf();
+        List<CompletableFuture<Void>> requests = new ArrayList<>();
+        for (Bucket.Node<InetSocketAddress> node : bucket.get(self, bucket.getK())) {
+            if (visited.add(node.getId())) {
+                requests.add(findNodeRequest(node.getData(), selfId).exceptionally(e -> null));
             }
         }
+        if (requests.isEmpty() || round >= SELF_LOOKUP_MAX_ROUND) {
+            logger.info("本机id查询结束,轮数:" + round + " 节点数:" + bucket.size());
+            return;
+        }
+        CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0]))
+                .thenRun(() -> selfLookup(visited, round + 1));
     }
 
-    private void findNodeRequest(InetSocketAddress socketAddress, byte[] peerId)
-            throws IOException {
+    /**
+     * ping节点,根据结果更新路由表
+     *
+     * @param id      节点id
+     * @param address 节点地址
+     * @return 节点是否回复
+     */
+    public CompletableFuture<Boolean> ping(NodeId id, InetSocketAddress address) {
+        return connection.sendAsync(address, DhtRequest.ping(selfId), Timeout.getMilliSecond(timeout))
+                .handle((response, e) -> {
+                    bucket.update(id, address, e == null);
+                    return e == null;
+                });
+    }
 
+    /**
+     * 发送find_node请求,回复的节点加入路由表
+     *
+     * @param address 节点地址
+     * @param target  目标id
+     * @return 完成时回复已处理
+     */
+    public CompletableFuture<Void> findNode(InetSocketAddress address, NodeId target) {
+        return findNodeRequest(address, target.getBytes());
+    }
+
+    private CompletableFuture<Void> findNodeRequest(InetSocketAddress socketAddress, byte[] peerId) {
         BencodeMap msg = DhtRequest.findNode(selfId, peerId);
-        BencodeMap response = connection.sendAndRecv(socketAddress, msg, Timeout.getMilliSecond(timeout));
+        return connection.sendAsync(socketAddress, msg, Timeout.getMilliSecond(timeout))
+                .thenAccept(response -> dealFindNode(socketAddress, response));
+    }
+
+    /**
+     * 回复的节点和回复中的节点都加入路由表
+     *
+     * @param address  回复的地址
+     * @param response 回复
+     */
+    private void dealFindNode(InetSocketAddress address, BencodeMap response) {
         BencodeMap r = response.getBencodeMap(R);
+        if (r.containsKey(ID) && r.getByteArray(ID).length == NodeId.LENGTH) {
+            bucket.update(NodeId.of(r.getByteArray(ID)), address, true);
+        }
         byte[] nodesArray = r.getByteArray(NODES);
         ByteBuffer wrap = ByteBuffer.wrap(nodesArray);
-        while (wrap.hasRemaining()) {
-            byte[] id = new byte[20];
-            wrap.get(id);
-            byte[] host = new byte[4];
-            wrap.get(host);
-            int port = 0xffff & wrap.getShort();
-            InetSocketAddress addr = new InetSocketAddress(InetAddress.getByAddress(host), port);
-            bucket.update(new BencodeByteArray(id), addr, true);
+        while (wrap.remaining() >= COMPACT_NODE_LENGTH) {
+            NodeId id = NodeId.read(wrap);
+            bucket.update(id, AddressUtil.toAddress(AddressUtil.read(wrap)), true);
         }
-
-
     }
 
-    public BencodeMap getPeers(byte[] peerId, InetSocketAddress address, Timeout timeout) throws IOException {
-        return connection.sendAndRecv(address, DhtRequest.getPeer(selfId, peerId), timeout);
+    /**
+     * 发送get_peers请求,不阻塞
+     *
+     * @param peerId  种子的info hash
+     * @param address dht节点地址
+     * @param timeout 超时
+     * @return 回复
+     */
+    public CompletableFuture<BencodeMap> getPeers(byte[] peerId, InetSocketAddress address, Timeout timeout) {
+        return connection.sendAsync(address, DhtRequest.getPeer(selfId, peerId), timeout);
     }
-
-
 }
@@ -0,0 +1,214 @@
+package cc.aguesuka.dht.connection;
+
+import cc.aguesuka.dht.token.KrpcToken;
+import cc.aguesuka.util.bencode.BencodeByteArray;
+import cc.aguesuka.util.bencode.BencodeMap;
+import cc.aguesuka.util.bencode.IBencode;
+import cc.aguesuka.util.log.LogSetting;
+import cc.aguesuka.util.stop.Timeout;
+import cc.aguesuka.util.stop.WheelTimer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * dht连接的公共部分,负责分发收到的消息和等待回复.
+ * 子类只需要实现收发udp报文
+ * <p>
+ * 每个请求分配一个2字节的事务id,回复按(地址,事务id)完成对应的future,
+ * 所以同一个节点可以同时有多个未回复的请求.等待回复不占用线程,超时由共享的{@link WheelTimer}处理.
+ * future的后续操作可能加锁或者写文件,所以超时的future不在定时器线程中结束,否则会拖慢所有定时任务
+ * <p>
+ * 注入器只注入子类声明的字段,所以{@link DhtHandler}和{@link WheelTimer}由子类提供
+ *
+ * @author :yangmingyuxing
+ * 2026/10/18 10:12
+ */
+public abstract class AbstractDhtConnection implements DhtConnection<InetSocketAddress, BencodeMap> {
+    private static Logger logger = Logger.getLogger(LogSetting.DEFAULT_NAME);
+    /**
+     * 事务id占用的字节数
+     */
+    private static final int TRANSACTION_ID_LENGTH = 2;
+    private static final int TRANSACTION_ID_MASK = 0xffff;
+    private Map<Transaction, CompletableFuture<BencodeMap>> transactionMap = new ConcurrentHashMap<>();
+    private AtomicInteger transactionCounter = new AtomicInteger();
+    /**
+     * 结束超时请求的线程,空闲时退出
+     */
+    private ThreadPoolExecutor timeoutExecutor = newTimeoutExecutor();
+
+    private static ThreadPoolExecutor newTimeoutExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "dht.timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * 处理请求的handler
+     *
+     * @return handler
+     */
+    abstract DhtHandler getHandler();
+
+    /**
+     * 请求超时使用的定时器
+     *
+     * @return 定时器
+     */
+    abstract WheelTimer getTimer();
+
+    /**
+     * 子类收到消息后调用,回复用来完成对应的请求,请求交给handler
+     *
+     * @param address 来源地址
+     * @param bencode 消息
+     */
+    void onMessage(InetSocketAddress address, BencodeMap bencode) {
+        byte[] y = bencode.getByteArray(KrpcToken.Y);
+        if (Arrays.equals(KrpcToken.RETURN, y)) {
+            logger.fine("收到回复:" + address + " " + bencode);
+            IBencode t = bencode.get(KrpcToken.T);
+            if (!(t instanceof BencodeByteArray)) {
+                return;
+            }
+            CompletableFuture<BencodeMap> future = transactionMap.get(new Transaction(address, ((BencodeByteArray) t).getBytes()));
+            if (future != null) {
+                future.complete(bencode);
+            }
+        } else if (Arrays.equals(KrpcToken.QUERY_TYPE, y)) {
+            logger.fine("收到请求:" + address + " " + bencode);
+            getHandler().onRequest(address, bencode);
+        } else {
+            logger.fine("错误消息:" + address + " " + bencode);
+            throw new RuntimeException();
+        }
+    }
+
+    /**
+     * 分配事务id并登记请求,事务id在同一地址未回复的请求中唯一
+     *
+     * @param address 目标地址
+     * @param future  请求的回复
+     * @return 事务
+     */
+    private Transaction register(InetSocketAddress address, CompletableFuture<BencodeMap> future) {
+        for (; ; ) {
+            Transaction transaction = new Transaction(address, transactionCounter.getAndIncrement() & TRANSACTION_ID_MASK);
+            if (transactionMap.putIfAbsent(transaction, future) == null) {
+                return transaction;
+            }
+        }
+    }
+
+    /**
+     * 发送请求的浅拷贝,t字段为分配的事务id.参数不会被修改,同一个请求可以在多个线程中同时发送
+     */
+    @Override
+    public CompletableFuture<BencodeMap> sendAsync(InetSocketAddress address, BencodeMap message, Timeout timeout) {
+        CompletableFuture<BencodeMap> future = new CompletableFuture<>();
+        Transaction transaction = register(address, future);
+        future.whenComplete((response, e) -> transactionMap.remove(transaction, future));
+        try {
+            int remaining = timeout.checkTimeout();
+            BencodeMap request = (BencodeMap) message.clone();
+            request.putByteArray(KrpcToken.T, transaction.idBytes());
+            send(address, request);
+            if (!timeout.isNever()) {
+                WheelTimer.Task expire = getTimer().schedule(() -> expire(address, future),
+                        remaining, TimeUnit.MILLISECONDS);
+                future.whenComplete((response, e) -> expire.cancel());
+            }
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 在定时器线程中调用,把结束请求交给超时线程
+     *
+     * @param address 目标地址
+     * @param future  请求的回复
+     */
+    private void expire(InetSocketAddress address, CompletableFuture<BencodeMap> future) {
+        SocketTimeoutException timeout = new SocketTimeoutException("请求 " + address + " 连接超时");
+        try {
+            timeoutExecutor.execute(() -> future.completeExceptionally(timeout));
+        } catch (RejectedExecutionException e) {
+            // 连接已关闭
+            future.completeExceptionally(timeout);
+        }
+    }
+
+    /**
+     * 子类关闭时调用,结束所有未回复的请求
+     */
+    void closeTransactions() {
+        timeoutExecutor.shutdown();
+        IOException closed = new IOException("连接已关闭");
+        for (CompletableFuture<BencodeMap> future : transactionMap.values()) {
+            future.completeExceptionally(closed);
+        }
+    }
+
+    /**
+     * 事务,由目标地址和事务id确定
+     */
+    private static class Transaction {
+        private final InetSocketAddress address;
+        private final int id;
+
+        private Transaction(InetSocketAddress address, int id) {
+            this.address = address;
+            this.id = id;
+        }
+
+        /**
+         * 根据回复中的t字段创建,长度不对的t不会匹配任何请求
+         *
+         * @param address 来源地址
+         * @param t       t字段
+         */
+        private Transaction(InetSocketAddress address, byte[] t) {
+            this(address, t.length == TRANSACTION_ID_LENGTH ? ((t[0] & 0xff) << 8 | (t[1] & 0xff)) : -1);
+        }
+
+        private byte[] idBytes() {
+            return new byte[]{(byte) (id >> 8), (byte) id};
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Transaction)) {
+                return false;
+            }
+            Transaction that = (Transaction) o;
+            return id == that.id && address.equals(that.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * address.hashCode() + id;
+        }
+    }
+}
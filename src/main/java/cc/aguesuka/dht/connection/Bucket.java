@@ -1,109 +1,370 @@
 package cc.aguesuka.dht.connection;
 
 import cc.aguesuka.util.inject.annotation.Config;
+import cc.aguesuka.util.inject.annotation.Init;
 
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
+ * Kademlia 路由表 http://www.bittorrent.org/beps/bep_0005.html#routing-table
+ * <p>
+ * 按节点和本机id的异或距离分为160个k桶,第i个桶保存距离在[2^i,2^(i+1))之间的节点,
+ * 每个桶最多保存k个节点,所以整个路由表最多有160*k个节点.
+ * 桶满时用失效的节点替换,没有失效的节点则丢弃新节点
+ *
  * @author :yangmingyuxing
  * 2019/7/8 19:33
  */
-public class Bucket<T extends Comparable<T>, D> {
+public class Bucket<D> {
+    private static final int BUCKET_COUNT = NodeId.BITS;
     @Config("bucket.self.id")
     byte[] selfId;
-    private ConcurrentSkipListMap<T, Node<T, D>> nodeMap = new ConcurrentSkipListMap<>();
+    private NodeId self;
     @Config("bucket.max.time")
     private int maxTime;
     @Config("bucket.max.fail")
     private int maxFail;
+    /**
+     * 每个桶最多保存的节点数
+     */
+    @Config("bucket.k")
+    private int k;
+    private List<KBucket<D>> buckets = new ArrayList<>(BUCKET_COUNT);
+
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.add(new KBucket<>());
+        }
+    }
+
+    @Init
+    private void init() {
+        self = NodeId.of(selfId);
+    }
 
     public byte[] getSelfId() {
         return selfId;
     }
 
-    public ConcurrentSkipListMap<T, Node<T, D>> getNodeMap() {
-        return nodeMap;
+    public NodeId getSelf() {
+        return self;
     }
 
-    public List<Node<T, D>> get(T t, int count) {
-        Iterator<Node<T, D>> head = nodeMap.headMap(t).values().iterator();
-        Iterator<Node<T, D>> tail = nodeMap.tailMap(t).values().iterator();
-        List<Node<T, D>> collect = new ArrayList<>();
-        int halfCount = count / 2;
-        for (int i = halfCount; i > 0; i--) {
-            if (head.hasNext()) {
-                collect.add(head.next());
-            }
-            if (tail.hasNext()) {
-                collect.add(tail.next());
+    public int getK() {
+        return k;
+    }
+
+    private boolean isBad(Node<D> node, long now) {
+        return node.failCount > maxFail || now - node.lastTime > maxTime;
+    }
+
+    /**
+     * 失败过或者一段时间没有通信,需要ping确认的节点
+     */
+    private boolean isQuestionable(Node<D> node, long now, long questionTime) {
+        return node.failCount > 0 || now - node.lastTime > questionTime;
+    }
+
+    /**
+     * 获得离t最近的count个有效节点
+     * <p>
+     * 设t在第i个桶,第i个桶中的节点离t最近,其次是所有序号小于i的桶,再次是序号大于i的桶,序号越大越远.
+     * 序号小于i的桶中的节点到t的距离都在[2^i,2^(i+1))之间,和桶的序号无关,所以要全部取出后一起排序.
+     * 非空的桶约有log(n)个,所以最多只需要排序k*log(n)个节点.只读,失效的节点由{@link #evict()}移除
+     *
+     * @param t     目标id
+     * @param count 数量
+     * @return 按距离从近到远排列的节点
+     */
+    public List<Node<D>> get(NodeId t, int count) {
+        List<Node<D>> result = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        Comparator<Node<D>> comparator = (a, b) -> t.compareDistance(a.id, b.id);
+        int index = self.bucketIndex(t);
+        if (index >= 0) {
+            buckets.get(index).collect(result, this, now);
+            result.sort(comparator);
+            if (result.size() < count) {
+                List<Node<D>> lower = new ArrayList<>();
+                for (int i = index - 1; i >= 0; i--) {
+                    buckets.get(i).collect(lower, this, now);
+                }
+                lower.sort(comparator);
+                result.addAll(lower);
             }
         }
-        return collect.stream().filter(node -> {
-            if (node.failCount > maxFail || System.currentTimeMillis() - node.lastTime.getTime() > maxTime) {
-                nodeMap.remove(node.t);
-                return false;
-            }
-            return true;
-        }).collect(Collectors.toList());
+        List<Node<D>> farther = new ArrayList<>();
+        for (int i = index + 1; i < BUCKET_COUNT && result.size() < count; i++) {
+            farther.clear();
+            buckets.get(i).collect(farther, this, now);
+            farther.sort(comparator);
+            result.addAll(farther);
+        }
+        return result.size() > count ? new ArrayList<>(result.subList(0, count)) : result;
     }
 
-    public void update(T t, D d, boolean ok) {
+    /**
+     * 更新节点状态
+     *
+     * @param t  节点id
+     * @param d  节点数据
+     * @param ok 是否通信成功
+     */
+    public void update(NodeId t, D d, boolean ok) {
         if (t == null) {
             return;
         }
-        if (nodeMap.containsKey(t)) {
-            Node node = nodeMap.get(t);
-            if (ok) {
-                node.onOk();
-            } else {
-                node.onFail();
+        int index = self.bucketIndex(t);
+        if (index < 0) {
+            return;
+        }
+        buckets.get(index).update(t, d, ok, this);
+    }
+
+    /**
+     * 恢复保存的节点,只在桶未满时加入,已存在的节点不变
+     *
+     * @param t         节点id
+     * @param d         节点数据
+     * @param lastTime  最后通信时间
+     * @param failCount 失败次数
+     */
+    public void restore(NodeId t, D d, long lastTime, int failCount) {
+        int index = self.bucketIndex(t);
+        if (index < 0) {
+            return;
+        }
+        Node<D> node = new Node<>(t, d);
+        node.lastTime = lastTime;
+        node.failCount = failCount;
+        buckets.get(index).restore(node, this);
+    }
+
+    /**
+     * 获得路由表中的所有节点,包括失效的节点
+     *
+     * @return 所有节点
+     */
+    public List<Node<D>> getAll() {
+        List<Node<D>> result = new ArrayList<>();
+        for (KBucket<D> bucket : buckets) {
+            bucket.collectAll(result);
+        }
+        return result;
+    }
+
+    /**
+     * 获得需要ping确认的节点,最久没有通信的在前
+     *
+     * @param questionTime 超过该时间没有通信的节点需要确认
+     * @param count        最多返回的数量
+     * @return 节点
+     */
+    public List<Node<D>> getQuestionable(long questionTime, int count) {
+        List<Node<D>> result = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (KBucket<D> bucket : buckets) {
+            bucket.collectQuestionable(result, this, now, questionTime);
+        }
+        result.sort(Comparator.comparingLong(node -> node.lastTime));
+        return result.size() > count ? new ArrayList<>(result.subList(0, count)) : result;
+    }
+
+    /**
+     * 移除所有失效的节点
+     *
+     * @return 移除的数量
+     */
+    public int evict() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (KBucket<D> bucket : buckets) {
+            count += bucket.evict(this, now);
+        }
+        return count;
+    }
+
+    /**
+     * 获得一段时间内没有变化的非空桶的随机目标id,用于刷新桶,返回的桶记为已刷新
+     *
+     * @param idleTime 超过该时间没有变化的桶需要刷新
+     * @param count    最多返回的数量
+     * @return 每个桶范围内的一个随机id
+     */
+    public List<NodeId> getRefreshTargets(long idleTime, int count) {
+        List<NodeId> result = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < BUCKET_COUNT && result.size() < count; i++) {
+            if (buckets.get(i).markRefresh(now, idleTime)) {
+                result.add(randomId(i));
             }
-        } else if (ok) {
-            nodeMap.put(t, new Node<>(t, d));
         }
+        return result;
+    }
 
-        if (!ok) {
-            Node node = nodeMap.get(t);
-            if (node.failCount > maxFail) {
-                nodeMap.remove(t);
+    /**
+     * 生成和本机id的距离在[2^index,2^(index+1))之间的随机id
+     *
+     * @param index 桶序号
+     * @return 随机id
+     */
+    NodeId randomId(int index) {
+        byte[] distance = new byte[NodeId.LENGTH];
+        ThreadLocalRandom.current().nextBytes(distance);
+        int highByte = NodeId.LENGTH - 1 - index / 8;
+        for (int i = 0; i < highByte; i++) {
+            distance[i] = 0;
+        }
+        int bit = 1 << (index % 8);
+        distance[highByte] = (byte) ((distance[highByte] & (bit - 1)) | bit);
+        return self.xor(NodeId.of(distance));
+    }
+
+    /**
+     * 路由表中的节点数
+     *
+     * @return 节点数
+     */
+    public int size() {
+        int size = 0;
+        for (KBucket<D> bucket : buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    /**
+     * 一个k桶,节点按最后通信时间从旧到新排列
+     */
+    private static class KBucket<D> {
+        private LinkedList<Node<D>> nodes = new LinkedList<>();
+        /**
+         * 最后一次有节点通信成功或者刷新的时间
+         */
+        private long lastChanged = System.currentTimeMillis();
+
+        private synchronized int size() {
+            return nodes.size();
+        }
+
+        private synchronized void collect(List<Node<D>> result, Bucket<D> table, long now) {
+            for (Node<D> node : nodes) {
+                if (!table.isBad(node, now)) {
+                    result.add(node);
+                }
             }
         }
+
+        private synchronized void collectAll(List<Node<D>> result) {
+            result.addAll(nodes);
+        }
+
+        private synchronized void collectQuestionable(List<Node<D>> result, Bucket<D> table, long now,
+                                                      long questionTime) {
+            for (Node<D> node : nodes) {
+                if (!table.isBad(node, now) && table.isQuestionable(node, now, questionTime)) {
+                    result.add(node);
+                }
+            }
+        }
+
+        private synchronized int evict(Bucket<D> table, long now) {
+            int size = nodes.size();
+            nodes.removeIf(node -> table.isBad(node, now));
+            return size - nodes.size();
+        }
+
+        private synchronized boolean markRefresh(long now, long idleTime) {
+            if (nodes.isEmpty() || now - lastChanged <= idleTime) {
+                return false;
+            }
+            lastChanged = now;
+            return true;
+        }
+
+        private synchronized void restore(Node<D> node, Bucket<D> table) {
+            if (nodes.size() >= table.k || nodes.stream().anyMatch(o -> o.id.equals(node.id))) {
+                return;
+            }
+            nodes.addLast(node);
+        }
+
+        private synchronized void update(NodeId t, D d, boolean ok, Bucket<D> table) {
+            Iterator<Node<D>> iterator = nodes.iterator();
+            while (iterator.hasNext()) {
+                Node<D> node = iterator.next();
+                if (node.id.equals(t)) {
+                    iterator.remove();
+                    if (ok) {
+                        node.onOk();
+                        nodes.addLast(node);
+                        lastChanged = node.lastTime;
+                    } else {
+                        node.onFail();
+                        if (node.failCount <= table.maxFail) {
+                            nodes.addFirst(node);
+                        }
+                    }
+                    return;
+                }
+            }
+            if (!ok) {
+                return;
+            }
+            if (nodes.size() >= table.k) {
+                long now = System.currentTimeMillis();
+                if (!nodes.removeIf(node -> table.isBad(node, now))) {
+                    return;
+                }
+            }
+            Node<D> node = new Node<>(t, d);
+            nodes.addLast(node);
+            lastChanged = node.lastTime;
+        }
     }
 
-    public static class Node<T, D> {
-        private T t;
+    public static class Node<D> {
+        private NodeId id;
         private D data;
-        private Date lastTime;
+        private long lastTime;
         private int failCount;
         private int okCount;
 
-        Node(T t, D data) {
-            this.t = t;
+        Node(NodeId id, D data) {
+            this.id = id;
             this.data = data;
-            lastTime = new Date();
+            lastTime = System.currentTimeMillis();
         }
 
-        public T getT() {
-            return t;
+        public NodeId getId() {
+            return id;
         }
 
         public D getData() {
             return data;
         }
 
+        public long getLastTime() {
+            return lastTime;
+        }
+
+        public int getFailCount() {
+            return failCount;
+        }
+
         void onOk() {
-            lastTime = new Date();
+            lastTime = System.currentTimeMillis();
             failCount = 0;
             okCount++;
         }
 
         void onFail() {
-            lastTime = new Date();
+            lastTime = System.currentTimeMillis();
             okCount = 0;
             failCount++;
         }
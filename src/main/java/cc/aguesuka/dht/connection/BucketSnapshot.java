@@ -0,0 +1,205 @@
+package cc.aguesuka.dht.connection;
+
+import cc.aguesuka.util.inject.annotation.Config;
+import cc.aguesuka.util.inject.annotation.Init;
+import cc.aguesuka.util.inject.annotation.Inject;
+import cc.aguesuka.util.log.LogSetting;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 路由表快照,定时把{@link Bucket}中的节点保存到文件,启动时读回,不需要等待初始节点就可以开始查询
+ * <p>
+ * 文件格式为大端序,4字节魔数,8字节保存时间ms,4字节节点数,之后每个节点38字节:
+ * 20字节id,4字节ipv4,2字节端口,8字节最后通信时间ms,4字节失败次数.
+ * 只保存ipv4节点
+ *
+ * @author :yangmingyuxing
+ * 2026/10/18 17:10
+ */
+public class BucketSnapshot implements AutoCloseable {
+    private static final int MAGIC = 0x424b5432;
+    private static final int HEADER_LENGTH = 16;
+    private static final int COUNT_OFFSET = 12;
+    private static final int RECORD_LENGTH = NodeId.LENGTH + 4 + 2 + 8 + 4;
+    private static final int IPV4_LENGTH = 4;
+    private static Logger logger = Logger.getLogger(LogSetting.DEFAULT_NAME);
+    @Inject
+    private Bucket<InetSocketAddress> bucket;
+    /**
+     * 快照文件,为空时不读取也不保存
+     */
+    @Config("bucket.snapshot.file")
+    private String file;
+    /**
+     * 保存快照的间隔ms
+     */
+    @Config("bucket.snapshot.interval")
+    private int interval;
+    /**
+     * 超过该时间未通信的节点不恢复
+     */
+    @Config("bucket.snapshot.maxAge")
+    private int maxAge;
+    private ScheduledExecutorService executor;
+
+    @Init
+    private void init() {
+        if (file.isEmpty()) {
+            return;
+        }
+        Path path = Paths.get(file);
+        if (Files.exists(path)) {
+            try {
+                logger.info("从快照恢复节点:" + load(path));
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "读取路由表快照失败:" + path, e);
+            }
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bucket.snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::saveQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 读取快照到路由表,失败次数保留.
+     * 恢复的节点保持保存时距最后通信的时长,保存时已经很久没有通信的节点仍然需要先ping确认.
+     * 不计算停止运行的时间,否则停止超过{@code bucket.max.time}后恢复的节点全部失效
+     *
+     * @param path 快照文件
+     * @return 恢复的节点数
+     * @throws IOException 读取失败
+     */
+    int load(Path path) throws IOException {
+        long now = System.currentTimeMillis();
+        long saveTime;
+        List<Record> records = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC) {
+                throw new IOException("快照文件格式错误");
+            }
+            saveTime = buffer.getLong();
+            int count = buffer.getInt();
+            if (count < 0 || buffer.remaining() < (long) count * RECORD_LENGTH) {
+                throw new IOException("快照文件不完整");
+            }
+            byte[] host = new byte[IPV4_LENGTH];
+            for (int i = 0; i < count; i++) {
+                NodeId id = NodeId.read(buffer);
+                buffer.get(host);
+                int port = 0xffff & buffer.getShort();
+                long lastTime = buffer.getLong();
+                int failCount = buffer.getInt();
+                if (now - lastTime <= maxAge) {
+                    records.add(new Record(id, new InetSocketAddress(InetAddress.getByAddress(host), port),
+                            lastTime, failCount));
+                }
+            }
+        }
+        // 按最后通信时间从旧到新加入,保持桶中的顺序
+        records.sort(Comparator.comparingLong(record -> record.lastTime));
+        for (Record record : records) {
+            long age = Math.max(saveTime - record.lastTime, 0);
+            bucket.restore(record.id, record.address, now - age, record.failCount);
+        }
+        return records.size();
+    }
+
+    /**
+     * 保存快照,先写临时文件再替换,防止写一半时退出
+     *
+     * @throws IOException 保存失败
+     */
+    public void save() throws IOException {
+        save(Paths.get(file));
+    }
+
+    void save(Path file) throws IOException {
+        List<Bucket.Node<InetSocketAddress>> nodes = bucket.getAll();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + nodes.size() * RECORD_LENGTH);
+        buffer.putInt(MAGIC);
+        buffer.putLong(System.currentTimeMillis());
+        buffer.putInt(0);
+        int count = 0;
+        for (Bucket.Node<InetSocketAddress> node : nodes) {
+            byte[] host = node.getData().getAddress().getAddress();
+            if (host.length != IPV4_LENGTH) {
+                continue;
+            }
+            node.getId().write(buffer);
+            buffer.put(host);
+            buffer.putShort((short) node.getData().getPort());
+            buffer.putLong(node.getLastTime());
+            buffer.putInt(node.getFailCount());
+            count++;
+        }
+        buffer.putInt(COUNT_OFFSET, count);
+        buffer.flip();
+        Path path = file.toAbsolutePath();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.fine("保存路由表快照:" + count);
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "保存路由表快照失败", e);
+        }
+    }
+
+    /**
+     * 停止定时保存,并保存最后一次快照
+     */
+    @Override
+    public void close() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        saveQuietly();
+    }
+
+    private static class Record {
+        private final NodeId id;
+        private final InetSocketAddress address;
+        private final long lastTime;
+        private final int failCount;
+
+        private Record(NodeId id, InetSocketAddress address, long lastTime, int failCount) {
+            this.id = id;
+            this.address = address;
+            this.lastTime = lastTime;
+            this.failCount = failCount;
+        }
+    }
+}
@@ -4,6 +4,9 @@ import cc.aguesuka.util.stop.Timeout;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
  * @author :yangmingyuxing
@@ -24,13 +27,39 @@ public interface DhtConnection<A, M> extends Closeable {
     void send(A address, M message) throws IOException;
 
     /**
-     * 发送消息等待回复
+     * 发送消息,不等待回复.消息的事务id由连接分配,
+     * 收到回复时由接收线程完成返回的future,超时则以{@link java.net.SocketTimeoutException}异常完成
+     * @param address 地址
+     * @param message 消息
+     * @param timeout 超时时间
+     * @return 消息回复
+     */
+    CompletableFuture<M> sendAsync(A address, M message, Timeout timeout);
+
+    /**
+     * 发送消息等待回复,消息的事务id由连接分配
      * @param address 地址
      * @param message 消息
      * @param timeout 超时时间
      * @return 消息回复
      * @throws IOException io异常
      */
-    M sendAndRecv(A address, M message, Timeout timeout) throws IOException;
+    default M sendAndRecv(A address, M message, Timeout timeout) throws IOException {
+        try {
+            return sendAsync(address, message, timeout).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("请求 " + address + " 被中断");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
 
 }
@@ -1,20 +1,17 @@
 package cc.aguesuka.dht.connection;
 
-import cc.aguesuka.dht.token.KrpcToken;
 import cc.aguesuka.util.bencode.Bencode;
 import cc.aguesuka.util.bencode.BencodeMap;
 import cc.aguesuka.util.inject.annotation.Config;
 import cc.aguesuka.util.inject.annotation.Init;
 import cc.aguesuka.util.inject.annotation.Inject;
 import cc.aguesuka.util.log.LogSetting;
-import cc.aguesuka.util.stop.Timeout;
+import cc.aguesuka.util.stop.WheelTimer;
 
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.Objects;
 import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -23,13 +20,14 @@ import java.util.logging.Logger;
  * @author :yangmingyuxing
  * 2019/7/2 23:36
  */
-public class DhtConnectionImpl implements DhtConnection<InetSocketAddress, BencodeMap> {
+public class DhtConnectionImpl extends AbstractDhtConnection {
     private static Logger logger = Logger.getLogger(LogSetting.DEFAULT_NAME);
     @Inject
     private DhtHandler handler;
+    @Inject
+    private WheelTimer timer;
     @Config("udp.timeout")
     private int timeout;
-    private Map<InetSocketAddress, Subscriber> subscriberMap = new ConcurrentHashMap<>();
     private boolean isStart = false;
     private int buffLength = 1024 * 16;
     @Config("udp.port")
@@ -39,6 +37,16 @@ public class DhtConnectionImpl implements DhtConnection<InetSocketAddress, Benco
     private ThreadPoolExecutor threadPoolExecutor;
     private DatagramSocket socket;
 
+    @Override
+    DhtHandler getHandler() {
+        return handler;
+    }
+
+    @Override
+    WheelTimer getTimer() {
+        return timer;
+    }
+
     @Init
     private void init() {
         this.threadPoolExecutor = new ThreadPoolExecutor(
@@ -77,21 +85,7 @@ public class DhtConnectionImpl implements DhtConnection<InetSocketAddress, Benco
             if (datagramPacket.getLength() > 0) {
                 byte[] b = Arrays.copyOfRange(datagramPacket.getData(), 0, datagramPacket.getLength());
                 InetSocketAddress address = (InetSocketAddress) datagramPacket.getSocketAddress();
-                BencodeMap bencode = Bencode.parse(ByteBuffer.wrap(b));
-                byte[] y = bencode.getByteArray(KrpcToken.Y);
-                if (Arrays.equals(KrpcToken.RETURN, y)) {
-                    logger.fine("收到回复:" + address + " " + bencode);
-                    Subscriber subscriber = subscriberMap.get(address);
-                    if (subscriber != null) {
-                        subscriber.onResponse(bencode);
-                    }
-                } else if (Arrays.equals(KrpcToken.QUERY_TYPE, y)) {
-                    logger.fine("收到请求:" + address + " " + bencode);
-                    handler.onRequest(address, bencode);
-                } else {
-                    logger.fine("错误消息:" + address + " " + bencode);
-                    throw new RuntimeException();
-                }
+                onMessage(address, Bencode.parse(ByteBuffer.wrap(b)));
             }
         } catch (SocketTimeoutException e) {
             //
@@ -113,59 +107,11 @@ public class DhtConnectionImpl implements DhtConnection<InetSocketAddress, Benco
         }
     }
 
-    @Override
-    public BencodeMap sendAndRecv(InetSocketAddress address, BencodeMap message, Timeout timeout) throws IOException {
-        return new Subscriber().request(this, address, message, timeout);
-    }
-
     @Override
     public void close() {
         isStart = false;
         threadPoolExecutor.shutdownNow();
         socket = null;
-    }
-
-    /**
-     * 订阅者
-     */
-    private static class Subscriber {
-        private BencodeMap response;
-
-        /**
-         * 发送消息到目标地址,并订阅目标地址返回的消息,进入阻塞状态,
-         * 直到发布者收到消息调用{@link Subscriber#onResponse},返回消息
-         *
-         * @param dhtConnectionImpl 连接实现
-         * @param address           目标地址
-         * @param request           请求的消息
-         * @param timeout           超时
-         * @return 返回的结果
-         * @throws IOException 连接异常
-         */
-        private synchronized BencodeMap request(DhtConnectionImpl dhtConnectionImpl, InetSocketAddress address,
-                                                BencodeMap request, Timeout timeout) throws IOException {
-
-            dhtConnectionImpl.subscriberMap.put(address, this);
-            dhtConnectionImpl.send(address, request);
-            try {
-                wait(timeout.checkTimeout());
-                Objects.requireNonNull(response);
-            } catch (InterruptedException | NullPointerException e) {
-                throw new SocketTimeoutException("请求 " + address + " 连接超时");
-            } finally {
-                dhtConnectionImpl.subscriberMap.remove(address, this);
-            }
-            return response;
-        }
-
-        /**
-         * 发布者{@link DhtConnectionImpl}收到订阅的消息调用该方法
-         *
-         * @param bencode 收到的消息
-         */
-        private synchronized void onResponse(BencodeMap bencode) {
-            this.response = bencode;
-            this.notify();
-        }
+        closeTransactions();
     }
 }
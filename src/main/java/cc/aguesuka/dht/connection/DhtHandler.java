@@ -1,15 +1,16 @@
 package cc.aguesuka.dht.connection;
 
 import cc.aguesuka.util.HexUtil;
-import cc.aguesuka.util.bencode.BencodeByteArray;
 import cc.aguesuka.util.bencode.BencodeMap;
 import cc.aguesuka.util.inject.annotation.Inject;
 import cc.aguesuka.util.log.LogSetting;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.Inet4Address;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -22,6 +23,10 @@ import static cc.aguesuka.dht.token.KrpcToken.*;
  */
 public class DhtHandler {
     private static Logger logger = Logger.getLogger(LogSetting.DEFAULT_NAME);
+    /**
+     * 压缩的节点信息长度,20字节id,4字节ip,2字节端口
+     */
+    private static final int COMPACT_NODE_LENGTH = NodeId.LENGTH + 6;
     private static BencodeMap baseResponse = new BencodeMap() {
         {
             putByteArray(T, "aa".getBytes(StandardCharsets.US_ASCII));
@@ -34,7 +39,7 @@ public class DhtHandler {
     DhtConnection<InetSocketAddress, BencodeMap> publisher;
     @Inject
     private
-    Bucket<BencodeByteArray, InetSocketAddress> bucket;
+    Bucket<InetSocketAddress> bucket;
 
     private static BencodeMap getResponse(BencodeMap re, BencodeMap query) {
         BencodeMap clone = (BencodeMap) baseResponse.clone();
@@ -70,28 +75,31 @@ public class DhtHandler {
                 default:
                     throw new RuntimeException("token error");
             }
-            BencodeByteArray id = ((BencodeByteArray) data.getBencodeMap(A).get(ID));
-            bucket.update(id, inetSocketAddress, true);
+            bucket.update(NodeId.of(data.getBencodeMap(A).getByteArray(ID)), inetSocketAddress, true);
         } catch (RuntimeException | IOException e) {
             onException(inetSocketAddress, data, e);
         }
 
     }
 
-    private byte[] nodeWith(BencodeMap data, String key) throws IOException {
-        List<Bucket.Node<BencodeByteArray, InetSocketAddress>> nodes = bucket.get((BencodeByteArray)
-                data.getBencodeMap(A).get(key), 8);
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        for (Bucket.Node<BencodeByteArray, InetSocketAddress> node : nodes) {
-            outputStream.write(node.getT().getBytes());
+    /**
+     * 压缩的最近节点,nodes字段只能保存ipv4地址,其他节点跳过
+     */
+    private byte[] nodeWith(BencodeMap data, String key) {
+        List<Bucket.Node<InetSocketAddress>> nodes = new ArrayList<>();
+        for (Bucket.Node<InetSocketAddress> node : bucket.get(NodeId.of(data.getBencodeMap(A).getByteArray(key)), 8)) {
+            if (node.getData().getAddress() instanceof Inet4Address) {
+                nodes.add(node);
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(nodes.size() * COMPACT_NODE_LENGTH);
+        for (Bucket.Node<InetSocketAddress> node : nodes) {
+            node.getId().write(buffer);
             InetSocketAddress socketAddress = node.getData();
-            byte[] address = socketAddress.getAddress().getAddress();
-            outputStream.write(address);
-            int port = socketAddress.getPort();
-            outputStream.write(port >> 4);
-            outputStream.write(port);
+            buffer.put(socketAddress.getAddress().getAddress());
+            buffer.putShort((short) socketAddress.getPort());
         }
-        return outputStream.toByteArray();
+        return buffer.array();
     }
 
     private void sendTo(InetSocketAddress inetSocketAddress, BencodeMap data) throws IOException {
@@ -0,0 +1,216 @@
+package cc.aguesuka.dht.connection;
+
+import cc.aguesuka.util.bencode.Bencode;
+import cc.aguesuka.util.bencode.BencodeMap;
+import cc.aguesuka.util.inject.annotation.Config;
+import cc.aguesuka.util.inject.annotation.Init;
+import cc.aguesuka.util.inject.annotation.Inject;
+import cc.aguesuka.util.log.LogSetting;
+import cc.aguesuka.util.stop.WheelTimer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 使用非阻塞{@link DatagramChannel}的dht连接
+ * <p>
+ * 接收线程只负责把报文读入缓冲区,解析和处理交给处理线程.
+ * 缓冲区在缓冲池中循环使用,缓冲池为空说明处理线程跟不上,此时丢弃报文并计数
+ *
+ * @author :yangmingyuxing
+ * 2026/10/18 10:40
+ */
+public class NioDhtConnection extends AbstractDhtConnection {
+    private static Logger logger = Logger.getLogger(LogSetting.DEFAULT_NAME);
+    private final AtomicLong droppedCount = new AtomicLong();
+    @Inject
+    private DhtHandler handler;
+    @Inject
+    private WheelTimer timer;
+    /**
+     * select 阻塞时间
+     */
+    @Config("udp.timeout")
+    private int timeout;
+    @Config("udp.port")
+    private int port;
+    @Config("udp.thread.name")
+    private String threadName;
+    /**
+     * SO_RCVBUF
+     */
+    @Config("udp.receiveBuffer")
+    private int receiveBufferSize;
+    /**
+     * SO_SNDBUF
+     */
+    @Config("udp.sendBuffer")
+    private int sendBufferSize;
+    /**
+     * 处理消息的线程数
+     */
+    @Config("udp.handler.thread.count")
+    private int handlerThreadCount;
+    /**
+     * 等待处理的报文数量,超过则丢弃
+     */
+    @Config("udp.handler.queue.size")
+    private int handlerQueueSize;
+    private int buffLength = 1024 * 16;
+    private volatile boolean isStart = false;
+    private BlockingQueue<ByteBuffer> bufferPool;
+    private ThreadPoolExecutor receiveExecutor;
+    private ThreadPoolExecutor handlerExecutor;
+    private DatagramChannel channel;
+    private Selector selector;
+
+    @Override
+    DhtHandler getHandler() {
+        return handler;
+    }
+
+    @Override
+    WheelTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * 获得丢弃的报文数量,包括处理不过来的接收报文和发送缓冲区满时的发送报文
+     *
+     * @return 丢弃的报文数量
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Init
+    private void init() throws IOException {
+        int poolSize = handlerQueueSize + handlerThreadCount;
+        bufferPool = new ArrayBlockingQueue<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            bufferPool.add(ByteBuffer.allocate(buffLength));
+        }
+        receiveExecutor = new ThreadPoolExecutor(
+                1, 1, 0L,
+                TimeUnit.MILLISECONDS, new SynchronousQueue<>(), runnable -> new Thread(runnable, threadName));
+        handlerExecutor = new ThreadPoolExecutor(
+                handlerThreadCount, handlerThreadCount, 0L,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(handlerQueueSize),
+                runnable -> new Thread(runnable, threadName + ".handler"));
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        start();
+    }
+
+    @Override
+    public void start() {
+        try {
+            isStart = true;
+            receiveExecutor.execute(() -> {
+                // 缓冲池为空时,用来读出并丢弃报文
+                ByteBuffer discardBuffer = ByteBuffer.allocate(buffLength);
+                try {
+                    while (isStart) {
+                        if (selector.select(timeout) > 0) {
+                            selector.selectedKeys().clear();
+                            loopRecv(discardBuffer);
+                        }
+                    }
+                } catch (ClosedChannelException | ClosedSelectorException e) {
+                    //
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.WARNING, e.getMessage(), e);
+                } finally {
+                    isStart = false;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            isStart = false;
+        }
+    }
+
+    /**
+     * 读出socket中所有的报文
+     *
+     * @param discardBuffer 丢弃报文用的缓冲区
+     * @throws IOException io异常
+     */
+    private void loopRecv(ByteBuffer discardBuffer) throws IOException {
+        for (; ; ) {
+            ByteBuffer buffer = bufferPool.poll();
+            if (buffer == null) {
+                discardBuffer.clear();
+                if (channel.receive(discardBuffer) == null) {
+                    return;
+                }
+                droppedCount.incrementAndGet();
+                continue;
+            }
+            buffer.clear();
+            SocketAddress address = channel.receive(buffer);
+            if (address == null) {
+                bufferPool.offer(buffer);
+                return;
+            }
+            buffer.flip();
+            try {
+                handlerExecutor.execute(() -> handle((InetSocketAddress) address, buffer));
+            } catch (RejectedExecutionException e) {
+                droppedCount.incrementAndGet();
+                bufferPool.offer(buffer);
+            }
+        }
+    }
+
+    private void handle(InetSocketAddress address, ByteBuffer buffer) {
+        try {
+            if (buffer.hasRemaining()) {
+                onMessage(address, Bencode.parse(buffer));
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, e.getMessage(), e);
+        } finally {
+            bufferPool.offer(buffer);
+        }
+    }
+
+    @Override
+    public void send(InetSocketAddress address, BencodeMap message) throws IOException {
+        logger.fine("发送消息:" + address + " " + message);
+        if (!isStart) {
+            throw new IOException("连接已关闭");
+        }
+        if (channel.send(ByteBuffer.wrap(Bencode.toBytes(message)), address) == 0) {
+            droppedCount.incrementAndGet();
+            throw new IOException("发送缓冲区已满");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        isStart = false;
+        logger.info("丢弃的报文数量:" + droppedCount.get());
+        receiveExecutor.shutdownNow();
+        handlerExecutor.shutdownNow();
+        selector.close();
+        channel.close();
+        closeTransactions();
+    }
+}
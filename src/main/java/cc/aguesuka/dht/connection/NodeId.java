@@ -0,0 +1,170 @@
+package cc.aguesuka.dht.connection;
+
+import cc.aguesuka.util.HexUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 160位的节点id,也用来表示info hash
+ * <p>
+ * 不可变,用两个long和一个int保存,按大端序对应20字节的id.
+ * 比较,异或距离和桶序号的计算都不创建对象
+ *
+ * @author :yangmingyuxing
+ * 2026/10/18 16:02
+ */
+public final class NodeId implements Comparable<NodeId> {
+    /**
+     * id的字节数
+     */
+    public static final int LENGTH = 20;
+    /**
+     * id的位数
+     */
+    public static final int BITS = LENGTH * 8;
+    /**
+     * 第0-7字节
+     */
+    private final long high;
+    /**
+     * 第8-15字节
+     */
+    private final long middle;
+    /**
+     * 第16-19字节
+     */
+    private final int low;
+
+    private NodeId(long high, long middle, int low) {
+        this.high = high;
+        this.middle = middle;
+        this.low = low;
+    }
+
+    /**
+     * 从byte数组创建
+     *
+     * @param bytes 长度为20的数组
+     * @return id
+     */
+    public static NodeId of(byte[] bytes) {
+        if (bytes.length != LENGTH) {
+            throw new IllegalArgumentException("id长度错误:" + bytes.length);
+        }
+        return read(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * 从buffer中读出20字节
+     *
+     * @param buffer buffer
+     * @return id
+     */
+    public static NodeId read(ByteBuffer buffer) {
+        return new NodeId(buffer.getLong(), buffer.getLong(), buffer.getInt());
+    }
+
+    /**
+     * 写入20字节到buffer
+     *
+     * @param buffer buffer
+     */
+    public void write(ByteBuffer buffer) {
+        buffer.putLong(high).putLong(middle).putInt(low);
+    }
+
+    public byte[] getBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+        write(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * 和另一个id的异或距离的最高位,即Kademlia中的桶序号
+     *
+     * @param other 另一个id
+     * @return 0-159, 相同时返回-1
+     */
+    public int bucketIndex(NodeId other) {
+        long x = high ^ other.high;
+        if (x != 0) {
+            return BITS - 1 - Long.numberOfLeadingZeros(x);
+        }
+        x = middle ^ other.middle;
+        if (x != 0) {
+            return Integer.SIZE + Long.SIZE - 1 - Long.numberOfLeadingZeros(x);
+        }
+        int y = low ^ other.low;
+        if (y != 0) {
+            return Integer.SIZE - 1 - Integer.numberOfLeadingZeros(y);
+        }
+        return -1;
+    }
+
+    /**
+     * 比较a和b哪个离this更近
+     *
+     * @param a id a
+     * @param b id b
+     * @return 负数a更近, 正数b更近, 0距离相同
+     */
+    public int compareDistance(NodeId a, NodeId b) {
+        int result = Long.compareUnsigned(a.high ^ high, b.high ^ high);
+        if (result != 0) {
+            return result;
+        }
+        result = Long.compareUnsigned(a.middle ^ middle, b.middle ^ middle);
+        if (result != 0) {
+            return result;
+        }
+        return Integer.compareUnsigned(a.low ^ low, b.low ^ low);
+    }
+
+    /**
+     * 异或距离
+     *
+     * @param other 另一个id
+     * @return 距离
+     */
+    public NodeId xor(NodeId other) {
+        return new NodeId(high ^ other.high, middle ^ other.middle, low ^ other.low);
+    }
+
+    /**
+     * 按字节无符号比较,和{@link cc.aguesuka.util.ByteUtil#compareBytes(byte[], byte[])}顺序相同
+     */
+    @Override
+    public int compareTo(NodeId o) {
+        int result = Long.compareUnsigned(high, o.high);
+        if (result != 0) {
+            return result;
+        }
+        result = Long.compareUnsigned(middle, o.middle);
+        if (result != 0) {
+            return result;
+        }
+        return Integer.compareUnsigned(low, o.low);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof NodeId)) {
+            return false;
+        }
+        NodeId that = (NodeId) o;
+        return high == that.high && middle == that.middle && low == that.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * Long.hashCode(high) + Long.hashCode(middle)) + low;
+    }
+
+    @Override
+    public String toString() {
+        return HexUtil.encode(getBytes());
+    }
+}
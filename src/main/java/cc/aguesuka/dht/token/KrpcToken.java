@@ -9,6 +9,9 @@ import java.nio.charset.StandardCharsets;
  */
 public class KrpcToken {
     public static final String T = "t";
+    /**
+     * 默认的事务id,通过连接发送请求时会被替换为分配的事务id
+     */
     public static final String T_VALUE = "aa";
     public static final String Y = "y";
     public static final String VERSION = "v";
@@ -1,5 +1,7 @@
 package cc.aguesuka.downloader;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * 根据info hash下载种子文件并保存
  *
@@ -15,4 +17,12 @@ public interface IDownloadInfoHash {
      */
     void download(byte[] infoHash) throws Exception;
 
+    /**
+     * 根据磁力链接下载种子文件,不阻塞调用线程
+     *
+     * @param infoHash 磁力链接中的info hash
+     * @return 保存完成时完成, 下载或保存失败时异常完成
+     */
+    CompletableFuture<Void> downloadAsync(byte[] infoHash);
+
 }
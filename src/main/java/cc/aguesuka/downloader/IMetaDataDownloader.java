@@ -1,7 +1,15 @@
 package cc.aguesuka.downloader;
 
+import cc.aguesuka.util.stop.ShutdownFlag;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * 从指定地址下载指定种子文件
@@ -20,4 +28,88 @@ public interface IMetaDataDownloader {
      */
     byte[] downloadMataData(byte[] infoHash, InetSocketAddress address) throws IOException;
 
+    /**
+     * 下载元文件,cancelFlag停止时立即结束下载
+     *
+     * @param infoHash   种子hash值
+     * @param address    peer地址
+     * @param cancelFlag 取消令牌
+     * @return 种子文件的info信息
+     * @throws IOException 下载失败
+     */
+    default byte[] downloadMataData(byte[] infoHash, InetSocketAddress address, ShutdownFlag cancelFlag)
+            throws IOException {
+        cancelFlag.check();
+        return downloadMataData(infoHash, address);
+    }
+
+    /**
+     * 下载元文件,下载中收到对方交换的种子节点(BEP 11)时交给peerConsumer.默认不接收交换的节点
+     *
+     * @param infoHash     种子hash值
+     * @param address      peer地址
+     * @param cancelFlag   取消令牌
+     * @param peerConsumer 接收压缩的节点地址,见{@link cc.aguesuka.util.AddressUtil},在下载的线程中调用,可以为null
+     * @return 种子文件的info信息
+     * @throws IOException 下载失败
+     */
+    default byte[] downloadMataData(byte[] infoHash, InetSocketAddress address, ShutdownFlag cancelFlag,
+                                    Consumer<long[]> peerConsumer) throws IOException {
+        return downloadMataData(infoHash, address, cancelFlag);
+    }
+
+    /**
+     * 异步下载元文件.默认在executor中执行阻塞的下载,非阻塞的实现可以不使用executor
+     *
+     * @param infoHash     种子hash值
+     * @param address      peer地址
+     * @param cancelFlag   取消令牌
+     * @param executor     执行阻塞下载的线程
+     * @param peerConsumer 接收对方交换的种子节点,可以为null
+     * @return 种子文件的info信息
+     */
+    default CompletableFuture<byte[]> downloadAsync(byte[] infoHash, InetSocketAddress address,
+                                                    ShutdownFlag cancelFlag, Executor executor,
+                                                    Consumer<long[]> peerConsumer) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return downloadMataData(infoHash, address, cancelFlag, peerConsumer);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * 向多个节点竞争下载,返回最先成功的结果.非阻塞的实现可以错开连接,只和最先握手的节点下载.
+     * 默认同时向所有节点下载
+     *
+     * @param infoHash     种子hash值
+     * @param addresses    peer地址
+     * @param cancelFlag   取消令牌
+     * @param executor     执行阻塞下载的线程
+     * @param peerConsumer 接收对方交换的种子节点,可以为null
+     * @return 种子文件的info信息, 全部失败时为最后一个失败原因
+     */
+    default CompletableFuture<byte[]> raceAsync(byte[] infoHash, List<InetSocketAddress> addresses,
+                                                ShutdownFlag cancelFlag, Executor executor,
+                                                Consumer<long[]> peerConsumer) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        if (addresses.isEmpty()) {
+            result.completeExceptionally(new IOException("没有可以下载的节点"));
+            return result;
+        }
+        AtomicInteger remaining = new AtomicInteger(addresses.size());
+        for (InetSocketAddress address : addresses) {
+            downloadAsync(infoHash, address, cancelFlag, executor, peerConsumer).whenComplete((info, e) -> {
+                if (info != null) {
+                    result.complete(info);
+                } else if (remaining.decrementAndGet() == 0) {
+                    result.completeExceptionally(e == null ? new IOException("下载失败")
+                            : e instanceof CompletionException ? e.getCause() : e);
+                }
+            });
+        }
+        return result;
+    }
 }
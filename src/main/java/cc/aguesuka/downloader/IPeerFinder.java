@@ -1,5 +1,7 @@
 package cc.aguesuka.downloader;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * 从dht中找到有种子文件的地址,并从中下载,直到下载一份,并返回种子中的info信息
  *
@@ -16,4 +18,13 @@ public interface IPeerFinder {
      * @throws Exception dht网络中发生无法继续的异常或者未找到种子或者线程异常
      */
     byte[] findPeer(byte[] infoHash, IMetaDataDownloader metaDataDownloader) throws Exception;
+
+    /**
+     * 寻找peer地址并下载,不阻塞调用线程
+     *
+     * @param infoHash           种子 info hash
+     * @param metaDataDownloader 种子信息下载者
+     * @return 种子信息, 取消时停止查询
+     */
+    CompletableFuture<byte[]> findPeerAsync(byte[] infoHash, IMetaDataDownloader metaDataDownloader);
 }
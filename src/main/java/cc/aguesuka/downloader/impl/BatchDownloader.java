@@ -0,0 +1,174 @@
+package cc.aguesuka.downloader.impl;
+
+import cc.aguesuka.downloader.IDownloadInfoHash;
+import cc.aguesuka.util.HexUtil;
+import cc.aguesuka.util.inject.annotation.Config;
+import cc.aguesuka.util.inject.annotation.Inject;
+import cc.aguesuka.util.log.LogSetting;
+import cc.aguesuka.util.stop.WheelTimer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 批量下载,共用同一个dht连接和路由表同时查询多个info hash
+ * <p>
+ * 每行一个info hash,可以是40位16进制或者磁力链接,空行和#开头的行忽略.
+ * 每完成一个就在结果文件中追加一行:info hash,ok或fail,失败原因.定时输出每分钟下载的种子数
+ *
+ * @author :yangmingyuxing
+ * 2026/10/18 19:50
+ */
+public class BatchDownloader {
+    private static final String MAGNET_PREFIX = "urn:btih:";
+    private static final int INFO_HASH_HEX_LENGTH = 40;
+    private static Logger logger = Logger.getLogger(LogSetting.DEFAULT_NAME);
+    @Inject
+    private IDownloadInfoHash downloadInfoHash;
+    @Inject
+    private WheelTimer timer;
+    /**
+     * 同时下载的info hash数量
+     */
+    @Config("batch.concurrency")
+    private int concurrency;
+    /**
+     * 结果文件
+     */
+    @Config("batch.resultFile")
+    private String resultFile;
+    /**
+     * 输出速度的间隔
+     */
+    @Config("batch.report.interval")
+    private int reportInterval;
+
+    /**
+     * 从一行输入中取出info hash
+     *
+     * @param line 一行输入
+     * @return 16进制的info hash, 无法识别时返回null
+     */
+    static String parseInfoHash(String line) {
+        String s = line.trim();
+        int index = s.toLowerCase(Locale.ROOT).indexOf(MAGNET_PREFIX);
+        if (index >= 0) {
+            s = s.substring(index + MAGNET_PREFIX.length());
+            if (s.length() > INFO_HASH_HEX_LENGTH) {
+                s = s.substring(0, INFO_HASH_HEX_LENGTH);
+            }
+        }
+        if (s.length() != INFO_HASH_HEX_LENGTH) {
+            return null;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return null;
+            }
+        }
+        return s.toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * 下载所有info hash,全部结束后返回
+     *
+     * @param reader 输入
+     * @throws IOException          读取输入或写结果失败
+     * @throws InterruptedException 线程中断
+     */
+    public void download(BufferedReader reader) throws IOException, InterruptedException {
+        Semaphore semaphore = new Semaphore(concurrency);
+        Stat stat = new Stat();
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(resultFile), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            scheduleReport(stat);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String infoHash = parseInfoHash(line);
+                if (infoHash == null) {
+                    logger.warning("无法识别的info hash:" + line);
+                    continue;
+                }
+                semaphore.acquire();
+                stat.started.incrementAndGet();
+                downloadInfoHash.downloadAsync(HexUtil.decode(infoHash)).whenComplete((v, e) -> {
+                    try {
+                        onComplete(writer, stat, infoHash, e);
+                    } finally {
+                        semaphore.release();
+                    }
+                });
+            }
+            // 等待所有下载结束
+            semaphore.acquire(concurrency);
+        } finally {
+            stat.isFinished = true;
+        }
+        logger.info(stat.report());
+    }
+
+    private void scheduleReport(Stat stat) {
+        timer.schedule(() -> {
+            if (!stat.isFinished) {
+                logger.info(stat.report());
+                scheduleReport(stat);
+            }
+        }, reportInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void onComplete(BufferedWriter writer, Stat stat, String infoHash, Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        String line;
+        if (e == null) {
+            stat.succeeded.incrementAndGet();
+            line = infoHash + "\tok";
+        } else {
+            stat.failed.incrementAndGet();
+            line = infoHash + "\tfail\t" + e.getMessage();
+        }
+        logger.fine(line);
+        synchronized (writer) {
+            try {
+                writer.write(line);
+                writer.newLine();
+                writer.flush();
+            } catch (IOException ioException) {
+                logger.log(Level.WARNING, "写入结果失败", ioException);
+            }
+        }
+    }
+
+    /**
+     * 下载统计
+     */
+    private static class Stat {
+        private final long startTime = System.nanoTime();
+        private final AtomicInteger started = new AtomicInteger();
+        private final AtomicInteger succeeded = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private volatile boolean isFinished;
+
+        private String report() {
+            double minutes = (System.nanoTime() - startTime) / (double) TimeUnit.MINUTES.toNanos(1);
+            return String.format("已开始:%d 成功:%d 失败:%d 速度:%.1f个/分钟", started.get(), succeeded.get(),
+                    failed.get(), minutes > 0 ? succeeded.get() / minutes : 0);
+        }
+    }
+}
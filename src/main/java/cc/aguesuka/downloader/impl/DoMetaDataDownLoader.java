@@ -1,23 +1,32 @@
 package cc.aguesuka.downloader.impl;
 
 import cc.aguesuka.downloader.IMetaDataDownloader;
-import cc.aguesuka.util.ByteUtil;
+import cc.aguesuka.util.DeadAddressCache;
 import cc.aguesuka.util.HexUtil;
 import cc.aguesuka.util.bencode.Bencode;
 import cc.aguesuka.util.bencode.BencodeMap;
 import cc.aguesuka.util.inject.annotation.Config;
+import cc.aguesuka.util.inject.annotation.Inject;
 import cc.aguesuka.util.log.LogSetting;
+import cc.aguesuka.util.stop.ShutdownException;
 import cc.aguesuka.util.stop.ShutdownFlag;
-import cc.aguesuka.util.stop.Timeout;
+import cc.aguesuka.util.stop.WheelTimer;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static cc.aguesuka.downloader.impl.MetadataDigest.PIECE_LENGTH;
+
 /**
  * @author :yangmingyuxing
  * 2019/7/14 23:07
@@ -30,11 +39,32 @@ public class DoMetaDataDownLoader implements IMetaDataDownloader {
     private int timeout;
     @Config("DoMetaDataDownLoader.connectionTimeout")
     private int connectionTimeout;
+    /**
+     * 同时请求的块数
+     */
+    @Config("peerDownload.pipeline")
+    private int pipeline;
+    @Inject
+    private WheelTimer timer;
+    @Inject
+    private DeadAddressCache deadAddressCache;
 
     @Override
     public byte[]
     downloadMataData(byte[] infoHash, InetSocketAddress address) throws IOException {
-        return new DownLoader(this, address, infoHash).downloadMataData();
+        return downloadMataData(infoHash, address, new ShutdownFlag(), null);
+    }
+
+    @Override
+    public byte[] downloadMataData(byte[] infoHash, InetSocketAddress address, ShutdownFlag cancelFlag)
+            throws IOException {
+        return downloadMataData(infoHash, address, cancelFlag, null);
+    }
+
+    @Override
+    public byte[] downloadMataData(byte[] infoHash, InetSocketAddress address, ShutdownFlag cancelFlag,
+                                   Consumer<long[]> peerConsumer) throws IOException {
+        return new DownLoader(this, address, infoHash, cancelFlag, peerConsumer).downloadMataData();
     }
 
     private static class DownLoader {
@@ -46,41 +76,92 @@ public class DoMetaDataDownLoader implements IMetaDataDownloader {
                 111, 116, 111, 99, 111, 108,
                 //
                 0, 0, 0, 0, 0, 16, 0, 1};
+        /**
+         * 本机的ut_metadata扩展编号
+         */
+        private static final int LOCAL_UT_METADATA = 1;
+        private static final int MSG_TYPE_REQUEST = 0;
+        private static final int MSG_TYPE_DATA = 1;
+        private static final int MSG_TYPE_REJECT = 2;
+        private static final byte EXTENDED = 0x14;
+        private static final int HANDSHAKE_LENGTH = 68;
+        /**
+         * 可以放下一个完整的块消息
+         */
+        private static final int READ_BUFFER_SIZE = PIECE_LENGTH + 1024;
+        private static final int WRITE_BUFFER_SIZE = 256;
+        /**
+         * 消息的最大长度,超过则断开,防止对方耗尽内存
+         */
+        private static final int MAX_MESSAGE_LENGTH = 1024 * 1024;
         byte[] infoHash;
         private Logger logger = Logger.getLogger(LogSetting.DEFAULT_NAME);
         private DoMetaDataDownLoader config;
         private Socket socket;
         private InetSocketAddress address;
         private ShutdownFlag shutdownFlag = new ShutdownFlag();
+        /**
+         * 调用者的取消令牌
+         */
+        private ShutdownFlag cancelFlag;
+        /**
+         * 接收对方交换的种子节点,可以为null
+         */
+        private Consumer<long[]> peerConsumer;
         private int utMetadata;
         private int metadataSize;
-        private Timeout timeout;
+        /**
+         * 读缓冲区,position到limit之间是未处理的数据.收到的消息是该缓冲区的切片,在下一次读取前有效
+         */
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
 
-        DownLoader(DoMetaDataDownLoader config, InetSocketAddress address, byte[] infoHash) {
+        DownLoader(DoMetaDataDownLoader config, InetSocketAddress address, byte[] infoHash, ShutdownFlag cancelFlag,
+                   Consumer<long[]> peerConsumer) {
             this.config = config;
             this.address = address;
             this.infoHash = infoHash;
+            this.cancelFlag = cancelFlag;
+            this.peerConsumer = peerConsumer;
+            readBuffer.limit(0);
         }
 
-        private void send(byte[] msg) throws IOException {
-            logger.fine("send message:" + address + " " + HexUtil.encode(msg));
+        private void send(byte[] msg, int length) throws IOException {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("send message:" + address + " " + HexUtil.encode(Arrays.copyOf(msg, length)));
+            }
             OutputStream outputStream = socket.getOutputStream();
-            outputStream.write(msg);
+            outputStream.write(msg, 0, length);
             outputStream.flush();
         }
 
-        private Socket newSocket() throws IOException {
-            Socket socket = new Socket();
-            socket.setSoTimeout(config.connectionTimeout);
-            socket.connect(address, config.connectionTimeout);
-            return socket;
+        /**
+         * 到达下载超时时间时在定时器线程中调用,或者取消时在取消的线程中调用,关闭socket使阻塞的读写立即失败
+         */
+        private void expire() {
+            shutdownFlag.shutdown();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //
+            }
         }
 
+        /**
+         * 最近失败过的节点直接失败,不占用socket.连接,握手或下载失败的节点记入{@link DeadAddressCache},
+         * 被取消的不记录
+         */
         private byte[] downloadMataData() throws IOException {
+            if (config.deadAddressCache.isPeerDead(address)) {
+                throw new IOException("节点最近失败过:" + address);
+            }
             logger.info("开始下载:" + address);
-            this.timeout = Timeout.getMilliSecond(config.timeout);
-            try (Socket socket = newSocket()) {
-                this.socket = socket;
+            this.socket = new Socket();
+            WheelTimer.Task expireTask = config.timer.schedule(this::expire, config.timeout, TimeUnit.MILLISECONDS);
+            Runnable unregister = cancelFlag.onShutdown(this::expire);
+            try (Socket socket = this.socket) {
+                socket.setSoTimeout(config.connectionTimeout);
+                socket.connect(address, config.connectionTimeout);
                 // 握手并获得种子信息和对方支持的协议
                 sendHandShake();
                 recvHandShake();
@@ -89,6 +170,23 @@ public class DoMetaDataDownLoader implements IMetaDataDownloader {
                 sendMySupport();
                 // 下载种子
                 return downloadPeer();
+            } catch (IOException e) {
+                cancelFlag.check();
+                config.deadAddressCache.markPeerDead(address);
+                // 任务已经执行,说明是定时器关闭了socket
+                if (!expireTask.cancel()) {
+                    throw new SocketTimeoutException("下载 " + address + " 超时");
+                }
+                throw e;
+            } catch (ShutdownException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                // 握手或者扩展消息格式错误
+                config.deadAddressCache.markPeerDead(address);
+                throw e;
+            } finally {
+                expireTask.cancel();
+                unregister.run();
             }
         }
 
@@ -97,26 +195,22 @@ public class DoMetaDataDownLoader implements IMetaDataDownloader {
             System.arraycopy(HANDSHAKE_BYTES, 0, msg, 0, 28);
             System.arraycopy(infoHash, 0, msg, 28, 20);
             System.arraycopy(config.id, 0, msg, 48, 20);
-            send(msg);
+            send(msg, msg.length);
         }
 
         private void recvHandShake() throws IOException {
-            // jdk 1.8
-            recvByCount(68);
-             /* jdk 1.9
-            byte[] bytes = recvByCount(68);
-
-            int checkLength = 20;
-
-            if (!Arrays.equals(HANDSHAKE_BYTES, 0, checkLength, bytes, 0, checkLength)) {
-                throw new IOException("recv hand shake error");
+            fill(HANDSHAKE_LENGTH);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("recv hand shake:" + address + " " + HexUtil.encode(Arrays.copyOfRange(readBuffer.array(),
+                        readBuffer.position(), readBuffer.position() + HANDSHAKE_LENGTH)));
             }
-            */
+            readBuffer.position(readBuffer.position() + HANDSHAKE_LENGTH);
         }
 
         private void recvPeerInfo() throws IOException {
-            byte[] message = recvExtendedMessage0x14();
-            BencodeMap bencodeMap = Bencode.parse(ByteBuffer.wrap(message, 2, message.length - 2));
+            ByteBuffer message = recvExtendedMessage0x14();
+            message.position(2);
+            BencodeMap bencodeMap = Bencode.parse(message);
             utMetadata = (int) bencodeMap.getBencodeMap("m").getLong("ut_metadata");
             metadataSize = (int) bencodeMap.getLong("metadata_size");
             logger.fine("metadataSize = " + metadataSize);
@@ -125,83 +219,163 @@ public class DoMetaDataDownLoader implements IMetaDataDownloader {
             }
         }
 
-        private byte[] recvExtendedMessage0x14() throws IOException {
+        /**
+         * 接收下一个扩展消息,跳过其它消息
+         *
+         * @return 消息的切片, 包括消息类型和扩展消息编号, 在下一次接收前有效
+         */
+        private ByteBuffer recvExtendedMessage0x14() throws IOException {
             for (; ; ) {
-
-                byte[] message = recvExtendedMessage();
-                if (message[0] == 0x14) {
+                ByteBuffer message = recvMessage();
+                if (message.remaining() >= 2 && message.get(0) == EXTENDED) {
                     return message;
                 }
             }
         }
 
-        private byte[] recvExtendedMessage() throws IOException {
-            int length = ByteUtil.intValue(recvByCount(4));
-            return recvByCount(length);
+        /**
+         * 在读缓冲区中切出一个带长度前缀的消息,不复制
+         *
+         * @return 消息的切片, 在下一次接收前有效
+         */
+        private ByteBuffer recvMessage() throws IOException {
+            fill(4);
+            int length = readBuffer.getInt();
+            if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+                throw new IOException("消息长度错误:" + length);
+            }
+            fill(length);
+            ByteBuffer message = readBuffer.slice();
+            message.limit(length);
+            readBuffer.position(readBuffer.position() + length);
+            if (logger.isLoggable(Level.FINE)) {
+                byte[] bytes = new byte[length];
+                message.duplicate().get(bytes);
+                logger.fine("recv message:" + address + " " + HexUtil.encode(bytes));
+            }
+            return message;
         }
 
-        private byte[] recvByCount(int count) throws IOException {
-            timeout.checkTimeout();
+        /**
+         * 读取直到读缓冲区中至少有count字节未处理的数据.空间不足时先移动未处理的数据,还不够再扩大
+         *
+         * @param count 字节数
+         */
+        private void fill(int count) throws IOException {
+            if (readBuffer.remaining() >= count) {
+                return;
+            }
+            if (readBuffer.capacity() < count) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(count, readBuffer.capacity() * 2));
+                bigger.put(readBuffer).flip();
+                readBuffer = bigger;
+            } else if (readBuffer.capacity() - readBuffer.position() < count) {
+                readBuffer.compact().flip();
+            }
             InputStream inputStream = socket.getInputStream();
-            byte[] result = new byte[count];
-            int readCount = 0;
-            while (readCount < count) {
-                timeout.checkTimeout();
+            byte[] array = readBuffer.array();
+            while (readBuffer.remaining() < count) {
                 shutdownFlag.check();
-                int read = inputStream.read(result, readCount, count - readCount);
-                if(read == -1){
+                int limit = readBuffer.limit();
+                int read = inputStream.read(array, limit, array.length - limit);
+                if (read == -1) {
                     throw new IOException("连接已经关闭");
                 }
-                readCount += read;
+                readBuffer.limit(limit + read);
             }
-            logger.fine("recv message:" + address + " " + HexUtil.encode(result));
-            return result;
-
         }
 
-
+        /**
+         * 一次发送多个块的请求,回复按块编号放入结果,每收到一块补发一个请求.
+         * 收到块时增量计算SHA-1,和info hash不一致时失败.期间收到的ut_pex消息交给peerConsumer
+         */
         private byte[] downloadPeer() throws IOException {
             byte[] info = new byte[metadataSize];
-            int pieceCount = (int) Math.ceil(metadataSize / (1024 * 16.0));
-            int offset = 0;
-            for (int pieceNum = 0; pieceNum < pieceCount; pieceNum++) {
-                offset += downloadPiece(pieceNum, info, offset);
+            int pieceCount = (metadataSize + PIECE_LENGTH - 1) / PIECE_LENGTH;
+            boolean[] received = new boolean[pieceCount];
+            MetadataDigest digest = MetadataDigest.ofThread(info);
+            int nextRequest = 0;
+            for (int window = Math.max(config.pipeline, 1); nextRequest < pieceCount && nextRequest < window; ) {
+                requestPiece(nextRequest++);
+            }
+            for (int receivedCount = 0; receivedCount < pieceCount; ) {
+                ByteBuffer buffer = recvExtendedMessage0x14();
+                byte extendedId = buffer.get(1);
+                if (extendedId != LOCAL_UT_METADATA && extendedId != PeerExchange.LOCAL_UT_PEX) {
+                    continue;
+                }
+                buffer.position(2);
+                if (extendedId == PeerExchange.LOCAL_UT_PEX) {
+                    onPeerExchange(buffer);
+                    continue;
+                }
+                BencodeMap bencode = Bencode.parse(buffer);
+                int pieceNum = (int) bencode.getLong("piece");
+                long msgType = bencode.getLong("msg_type");
+                if (msgType == MSG_TYPE_REJECT) {
+                    throw new IOException("对方拒绝了第 " + pieceNum + " 块");
+                }
+                if (msgType != MSG_TYPE_DATA || pieceNum < 0 || pieceNum >= pieceCount || received[pieceNum]) {
+                    continue;
+                }
+                int offset = pieceNum * PIECE_LENGTH;
+                int length = Math.min(PIECE_LENGTH, metadataSize - offset);
+                if (buffer.remaining() != length) {
+                    throw new IOException("第 " + pieceNum + " 块长度错误:" + buffer.remaining());
+                }
+                buffer.get(info, offset, length);
+                received[pieceNum] = true;
+                receivedCount++;
+                digest.update(received);
+                if (nextRequest < pieceCount) {
+                    requestPiece(nextRequest++);
+                }
+            }
+            if (!digest.verify(infoHash)) {
+                throw new IOException("种子信息校验失败");
             }
-
             return info;
         }
 
+        private void onPeerExchange(ByteBuffer message) {
+            long[] added = PeerExchange.parseAdded(message);
+            logger.fine("收到交换的节点:" + address + " " + added.length);
+            if (peerConsumer != null && added.length > 0) {
+                peerConsumer.accept(added);
+            }
+        }
+
         private void sendMySupport() throws IOException {
             BencodeMap m = new BencodeMap();
-            m.putLong("ut_metadata", 1);
+            m.putLong("ut_metadata", LOCAL_UT_METADATA);
+            m.putLong(PeerExchange.UT_PEX, PeerExchange.LOCAL_UT_PEX);
             BencodeMap message = new BencodeMap();
             message.put("m", m);
             sendExtended(0, message);
         }
 
-        private int downloadPiece(int pieceNum, byte[] toByteArray, int offset) throws IOException {
-            logger.fine("正在下载第:" + pieceNum + " 块");
+        private void requestPiece(int pieceNum) throws IOException {
+            logger.fine("请求第:" + pieceNum + " 块");
             BencodeMap bencode = new BencodeMap();
-            bencode.putLong("msg_type", 0);
+            bencode.putLong("msg_type", MSG_TYPE_REQUEST);
             bencode.putLong("piece", pieceNum);
             sendExtended(utMetadata, bencode);
-            byte[] recv = recvExtendedMessage0x14();
-            ByteBuffer buffer = ByteBuffer.wrap(recv, 2, recv.length - 2);
-            Bencode.parse(buffer);
-            int remaining = buffer.remaining();
-            buffer.get(toByteArray, offset, remaining);
-            return remaining;
         }
 
         private void sendExtended(int metadataNum, BencodeMap messageMap) throws IOException {
-            logger.fine("send extended = " + messageMap);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("send extended = " + messageMap);
+            }
             byte[] message = messageMap.toBencodeBytes();
-            ByteBuffer msg = ByteBuffer.allocate(message.length + 6);
-            msg.putInt(message.length + 2);
-            msg.put((byte) 0x14);
-            msg.put((byte) metadataNum);
-            msg.put(message);
-            send(msg.array());
+            if (writeBuffer.capacity() < message.length + 6) {
+                writeBuffer = ByteBuffer.allocate(message.length + 6);
+            }
+            writeBuffer.clear();
+            writeBuffer.putInt(message.length + 2);
+            writeBuffer.put(EXTENDED);
+            writeBuffer.put((byte) metadataNum);
+            writeBuffer.put(message);
+            send(writeBuffer.array(), writeBuffer.position());
         }
     }
 
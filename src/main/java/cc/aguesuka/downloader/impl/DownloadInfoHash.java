@@ -6,6 +6,9 @@ import cc.aguesuka.downloader.IMetaDataDownloader;
 import cc.aguesuka.downloader.IPeerFinder;
 import cc.aguesuka.util.inject.annotation.Inject;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
 /**
  * @author :yangmingyuxing
  * 2019/7/25 11:05
@@ -18,13 +21,30 @@ public class DownloadInfoHash implements IDownloadInfoHash {
     @Inject
     IPeerFinder peerFinder;
 
+    private static final int INFO_HASH_LENGTH = 20;
+
     @Override
     public void download(byte[] infoHash) throws Exception {
-        int infoHashLength = 20;
-        if (infoHash.length != infoHashLength) {
+        if (infoHash.length != INFO_HASH_LENGTH) {
             throw new IllegalArgumentException();
         }
         byte[] info = peerFinder.findPeer(infoHash, metaDataDownload);
         infoHashSaver.save(infoHash, info);
     }
+
+    @Override
+    public CompletableFuture<Void> downloadAsync(byte[] infoHash) {
+        if (infoHash.length != INFO_HASH_LENGTH) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalArgumentException());
+            return future;
+        }
+        return peerFinder.findPeerAsync(infoHash, metaDataDownload).thenAccept(info -> {
+            try {
+                infoHashSaver.save(infoHash, info);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
 }
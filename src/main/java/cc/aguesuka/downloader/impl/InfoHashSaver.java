@@ -25,6 +25,9 @@ public class InfoHashSaver implements IInfoHashSaver {
     @Override
     public void save(byte[] infoHash, byte[] peerInfo) throws IOException {
         logger.fine("准备保存文件");
+        if (!MetadataDigest.matches(infoHash, peerInfo)) {
+            throw new IOException("种子信息和info hash不一致:" + HexUtil.encode(infoHash));
+        }
         String fileName = HexUtil.encode(infoHash) + ".torrent";
         BencodeMap peerMap = new BencodeMap();
         peerMap.putByteArray("announce", "udp://tracker.openbittorrent.com:80/announce".getBytes(StandardCharsets.UTF_8));
@@ -0,0 +1,88 @@
+package cc.aguesuka.downloader.impl;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 按块增量计算种子信息的SHA-1并和info hash比较.
+ * 块可以乱序到达,从第0块开始连续收到的块在到达时就计算,最后一块到达后只需要计算剩余的部分
+ *
+ * @author :yangmingyuxing
+ * 2026/10/18 23:30
+ */
+public class MetadataDigest {
+    /**
+     * ut_metadata的块大小,BEP 9 规定为16KiB,两个下载器共用
+     */
+    public static final int PIECE_LENGTH = 16 * 1024;
+    private static final ThreadLocal<MessageDigest> THREAD_DIGEST = ThreadLocal.withInitial(MetadataDigest::newDigest);
+    private final MessageDigest digest;
+    private final byte[] metadata;
+    private final int pieceCount;
+    private int hashedCount;
+
+    /**
+     * @param digest   计算用的MessageDigest,会被重置
+     * @param metadata 保存种子信息的缓冲区
+     */
+    public MetadataDigest(MessageDigest digest, byte[] metadata) {
+        digest.reset();
+        this.digest = digest;
+        this.metadata = metadata;
+        this.pieceCount = (metadata.length + PIECE_LENGTH - 1) / PIECE_LENGTH;
+    }
+
+    /**
+     * 使用当前线程的MessageDigest,只能在当前线程中使用,并且同一时间只能有一个
+     *
+     * @param metadata 保存种子信息的缓冲区
+     * @return MetadataDigest
+     */
+    public static MetadataDigest ofThread(byte[] metadata) {
+        return new MetadataDigest(THREAD_DIGEST.get(), metadata);
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 用当前线程的MessageDigest校验完整的种子信息
+     *
+     * @param infoHash info hash
+     * @param info     种子信息
+     * @return 是否一致
+     */
+    public static boolean matches(byte[] infoHash, byte[] info) {
+        MessageDigest digest = THREAD_DIGEST.get();
+        digest.reset();
+        return MessageDigest.isEqual(infoHash, digest.digest(info));
+    }
+
+    /**
+     * 计算已经连续收到的块
+     *
+     * @param received 每块是否已经收到
+     */
+    public void update(boolean[] received) {
+        while (hashedCount < pieceCount && received[hashedCount]) {
+            int offset = hashedCount * PIECE_LENGTH;
+            digest.update(metadata, offset, Math.min(PIECE_LENGTH, metadata.length - offset));
+            hashedCount++;
+        }
+    }
+
+    /**
+     * 所有块计算完成后和info hash比较
+     *
+     * @param infoHash info hash
+     * @return 是否一致, 还有块未计算时返回false
+     */
+    public boolean verify(byte[] infoHash) {
+        return hashedCount == pieceCount && MessageDigest.isEqual(infoHash, digest.digest());
+    }
+}
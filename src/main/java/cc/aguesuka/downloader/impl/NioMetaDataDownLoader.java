@@ -0,0 +1,982 @@
+package cc.aguesuka.downloader.impl;
+
+import cc.aguesuka.downloader.IMetaDataDownloader;
+import cc.aguesuka.downloader.utp.UtpMultiplexer;
+import cc.aguesuka.downloader.utp.UtpSocket;
+import cc.aguesuka.util.DeadAddressCache;
+import cc.aguesuka.util.HexUtil;
+import cc.aguesuka.util.bencode.Bencode;
+import cc.aguesuka.util.bencode.BencodeMap;
+import cc.aguesuka.util.inject.annotation.Config;
+import cc.aguesuka.util.inject.annotation.Init;
+import cc.aguesuka.util.inject.annotation.Inject;
+import cc.aguesuka.util.log.LogSetting;
+import cc.aguesuka.util.stop.ShutdownException;
+import cc.aguesuka.util.stop.ShutdownFlag;
+import cc.aguesuka.util.stop.WheelTimer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static cc.aguesuka.downloader.impl.MetadataDigest.PIECE_LENGTH;
+
+/**
+ * 非阻塞的种子信息下载 http://www.bittorrent.org/beps/bep_0009.html
+ * <p>
+ * 每个连接是一个状态机:连接,BT握手(BEP 3),扩展握手(BEP 10),按窗口请求ut_metadata的块.
+ * 同一个种子的多个连接共同下载,见{@link Swarm}.下载中收到的ut_pex消息交给调用者,见{@link PeerExchange}.
+ * 所有连接由少量选择器线程处理,线程数和同时下载的连接数无关.
+ * 连接和下载超时由{@link WheelTimer}处理,取消令牌停止时立即关闭连接
+ *
+ * @author :yangmingyuxing
+ * 2026/10/18 22:20
+ */
+public class NioMetaDataDownLoader implements IMetaDataDownloader, AutoCloseable {
+    private static final byte[] HANDSHAKE_BYTES = {
+            // 19 代表长度
+            19,
+            // BitTorrent protocol 协议名称
+            66, 105, 116, 84, 111, 114, 114, 101, 110, 116, 32, 112, 114,
+            111, 116, 111, 99, 111, 108,
+            //
+            0, 0, 0, 0, 0, 16, 0, 1};
+    private static final int HANDSHAKE_LENGTH = 68;
+    private static final int PROTOCOL_LENGTH = 20;
+    private static final int INFO_HASH_OFFSET = 28;
+    private static final int INFO_HASH_LENGTH = 20;
+    private static final int RESERVED_EXTENSION_INDEX = 25;
+    private static final int RESERVED_EXTENSION_BIT = 0x10;
+    private static final byte EXTENDED = 20;
+    private static final int EXTENDED_HANDSHAKE = 0;
+    /**
+     * 本机的ut_metadata扩展编号
+     */
+    private static final int LOCAL_UT_METADATA = 1;
+    private static final int MSG_TYPE_REQUEST = 0;
+    private static final int MSG_TYPE_DATA = 1;
+    private static final int MSG_TYPE_REJECT = 2;
+    private static final int MAX_METADATA_SIZE = 16 * 1024 * 1024;
+    /**
+     * 消息的最大长度,超过则断开,防止对方耗尽内存
+     */
+    private static final int MAX_MESSAGE_LENGTH = 1024 * 1024;
+    private static final int INIT_BUFFER_SIZE = 1024;
+    private static Logger logger = Logger.getLogger(LogSetting.DEFAULT_NAME);
+    @Config("bucket.self.id")
+    private byte[] id;
+    @Config("peerDownload.timeout")
+    private int timeout;
+    @Config("DoMetaDataDownLoader.connectionTimeout")
+    private int connectionTimeout;
+    /**
+     * 选择器线程数
+     */
+    @Config("peerDownload.selector.count")
+    private int selectorCount;
+    /**
+     * 同时请求的块数
+     */
+    @Config("peerDownload.pipeline")
+    private int pipeline;
+    @Inject
+    private WheelTimer timer;
+    @Inject
+    private DeadAddressCache deadAddressCache;
+    /**
+     * 一个块请求超过该时间未回复时,可以再向其它节点请求
+     */
+    @Config("peerDownload.straggler.timeout")
+    private int stragglerTimeout;
+    /**
+     * 竞争连接时,连接下一个节点前等待的时间
+     */
+    @Config("peerDownload.race.stagger")
+    private int raceStagger;
+    /**
+     * 竞争连接时是否同时用uTP连接每个节点,默认关闭
+     */
+    @Config("peerDownload.utp")
+    private boolean useUtp;
+    private SelectorLoop[] loops;
+
+    @Init
+    private void init() throws IOException {
+        loops = new SelectorLoop[Math.max(selectorCount, 1)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop("peerDownload.selector." + i);
+        }
+    }
+
+    @Override
+    public byte[] downloadMataData(byte[] infoHash, InetSocketAddress address) throws IOException {
+        return downloadMataData(infoHash, address, new ShutdownFlag());
+    }
+
+    @Override
+    public byte[] downloadMataData(byte[] infoHash, InetSocketAddress address, ShutdownFlag cancelFlag)
+            throws IOException {
+        return downloadMataData(infoHash, address, cancelFlag, null);
+    }
+
+    @Override
+    public byte[] downloadMataData(byte[] infoHash, InetSocketAddress address, ShutdownFlag cancelFlag,
+                                   Consumer<long[]> peerConsumer) throws IOException {
+        try {
+            return downloadAsync(infoHash, address, cancelFlag, null, peerConsumer).get();
+        } catch (InterruptedException e) {
+            cancelFlag.shutdown();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * 不使用executor,回调和peerConsumer在选择器线程中执行,必须很快返回
+     */
+    @Override
+    public CompletableFuture<byte[]> downloadAsync(byte[] infoHash, InetSocketAddress address,
+                                                   ShutdownFlag cancelFlag, Executor executor,
+                                                   Consumer<long[]> peerConsumer) {
+        return open(loopOf(infoHash), infoHash, address, cancelFlag, null, false, peerConsumer).future;
+    }
+
+    /**
+     * 错开时间依次连接节点,只和最先完成BT握手的节点继续下载,其它连接关闭.
+     * 连接失败时立即连接下一个节点,不等待错开的时间.不使用executor,peerConsumer在选择器线程中执行
+     */
+    @Override
+    public CompletableFuture<byte[]> raceAsync(byte[] infoHash, List<InetSocketAddress> addresses,
+                                               ShutdownFlag cancelFlag, Executor executor,
+                                               Consumer<long[]> peerConsumer) {
+        SelectorLoop loop = loopOf(infoHash);
+        Race race = new Race(loop, infoHash, addresses, cancelFlag, peerConsumer);
+        loop.execute(race::startNext);
+        return race.future;
+    }
+
+    /**
+     * 同一个种子的连接在同一个线程中,共享下载进度不需要加锁
+     */
+    private SelectorLoop loopOf(byte[] infoHash) {
+        return loops[Math.floorMod(Arrays.hashCode(infoHash), loops.length)];
+    }
+
+    /**
+     * 创建连接并在选择器线程中开始.最近失败过的节点直接失败.
+     * 很多节点不支持uTP,所以uTP连接失败不记入{@link DeadAddressCache}
+     *
+     * @param race         所属的竞争连接,没有时为null
+     * @param utp          是否使用uTP
+     * @param peerConsumer 接收对方交换的种子节点,可以为null
+     * @return 连接
+     */
+    private Connection open(SelectorLoop loop, byte[] infoHash, InetSocketAddress address, ShutdownFlag cancelFlag,
+                            Race race, boolean utp, Consumer<long[]> peerConsumer) {
+        Connection connection = new Connection(loop, infoHash, address, new CompletableFuture<>(), race, utp,
+                peerConsumer);
+        if (deadAddressCache.isPeerDead(address)) {
+            connection.future.completeExceptionally(new IOException("节点最近失败过:" + address));
+            return connection;
+        }
+        loop.execute(connection::start);
+        // 结束后取消注册,否则任务级的取消令牌会一直引用已经结束的连接
+        Runnable unregister = cancelFlag.onShutdown(
+                () -> loop.execute(() -> connection.fail(new ShutdownException())));
+        connection.future.whenComplete((info, e) -> {
+            unregister.run();
+            if (e == null || e instanceof ShutdownException || utp) {
+                return;
+            }
+            deadAddressCache.markPeerDead(address);
+        });
+        return connection;
+    }
+
+    @Override
+    public void close() {
+        if (loops == null) {
+            return;
+        }
+        for (SelectorLoop loop : loops) {
+            loop.close();
+        }
+    }
+
+    /**
+     * 一个选择器线程,连接的所有操作都在该线程中执行
+     */
+    private class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        /**
+         * 正在下载的种子,key为info hash和种子信息长度
+         */
+        private final Map<String, Swarm> swarms = new HashMap<>();
+        private final Thread thread;
+        private volatile boolean isStart = true;
+        /**
+         * uTP连接共用的端口,第一次使用时打开
+         */
+        private UtpMultiplexer utp;
+        private long nextUtpTick;
+
+        private SelectorLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * 在选择器线程中执行任务
+         *
+         * @param task 任务
+         */
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isStart) {
+                    // 有uTP连接时需要定时处理重传
+                    selector.select(utp == null || utp.isEmpty() ? 0 : UtpMultiplexer.TICK_INTERVAL);
+                    // 任务和连接的异常只影响自己,不能结束选择器线程,否则该线程的所有下载都不会结束
+                    for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            logger.log(Level.WARNING, "选择器任务异常", e);
+                        }
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        dispatch(key);
+                    }
+                    long now = System.currentTimeMillis();
+                    if (utp != null && now >= nextUtpTick) {
+                        nextUtpTick = now + UtpMultiplexer.TICK_INTERVAL;
+                        utp.tick();
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (isStart) {
+                    logger.log(Level.WARNING, "选择器异常", e);
+                }
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).fail(new IOException("下载器已关闭"));
+                    }
+                }
+                if (utp != null) {
+                    utp.close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    //
+                }
+            }
+        }
+
+        private void dispatch(SelectionKey key) {
+            Object attachment = key.attachment();
+            try {
+                if (attachment instanceof UtpMultiplexer) {
+                    utp.onReadable();
+                } else {
+                    ((Connection) attachment).onSelect(key);
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "选择器事件处理异常", e);
+                if (attachment instanceof Connection) {
+                    ((Connection) attachment).fail(e);
+                }
+            }
+        }
+
+        private UtpMultiplexer utp() throws IOException {
+            if (utp == null) {
+                utp = new UtpMultiplexer(selector);
+            }
+            return utp;
+        }
+
+        private void close() {
+            isStart = false;
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 一个种子节点的连接,使用TCP或者uTP,只在选择器线程中访问
+     */
+    private class Connection implements UtpSocket.Listener {
+        private final SelectorLoop loop;
+        private final byte[] infoHash;
+        private final InetSocketAddress address;
+        private final CompletableFuture<byte[]> future;
+        private final boolean utp;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private UtpSocket utpSocket;
+        private WheelTimer.Task timeoutTask;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INIT_BUFFER_SIZE);
+        private Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+        private boolean handshakeReceived;
+        private int utMetadata = -1;
+        private Swarm swarm;
+        /**
+         * 已经向该节点请求但未收到的块
+         */
+        private List<Integer> requested = new ArrayList<>();
+        private WheelTimer.Task retryTask;
+        private final Race race;
+        private final Consumer<long[]> peerConsumer;
+
+        private Connection(SelectorLoop loop, byte[] infoHash, InetSocketAddress address,
+                           CompletableFuture<byte[]> future, Race race, boolean utp, Consumer<long[]> peerConsumer) {
+            this.race = race;
+            this.peerConsumer = peerConsumer;
+            this.utp = utp;
+            this.loop = loop;
+            this.infoHash = infoHash;
+            this.address = address;
+            this.future = future;
+        }
+
+        private void start() {
+            if (future.isDone()) {
+                return;
+            }
+            logger.fine("开始下载:" + address + (utp ? " uTP" : ""));
+            try {
+                if (utp) {
+                    schedule(connectionTimeout, "连接 " + address + " 超时");
+                    utpSocket = loop.utp().connect(address, this);
+                    return;
+                }
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                boolean connected = channel.connect(address);
+                key = channel.register(loop.selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+                schedule(connectionTimeout, "连接 " + address + " 超时");
+                if (connected) {
+                    onConnected();
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * 替换当前的超时任务
+         */
+        private void schedule(int delay, String message) {
+            if (timeoutTask != null) {
+                timeoutTask.cancel();
+            }
+            timeoutTask = timer.schedule(() -> loop.execute(() -> fail(new SocketTimeoutException(message))),
+                    delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void onSelect(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    onConnected();
+                    return;
+                }
+                if (key.isWritable()) {
+                    flush();
+                }
+                if (key.isReadable()) {
+                    read();
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onConnected() {
+            schedule(timeout, "下载 " + address + " 超时");
+            ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+            handshake.put(HANDSHAKE_BYTES).put(infoHash).put(id).flip();
+            send(handshake);
+            BencodeMap m = new BencodeMap();
+            m.putLong("ut_metadata", LOCAL_UT_METADATA);
+            m.putLong(PeerExchange.UT_PEX, PeerExchange.LOCAL_UT_PEX);
+            BencodeMap message = new BencodeMap();
+            message.put("m", m);
+            sendExtended(EXTENDED_HANDSHAKE, message);
+        }
+
+        private void sendExtended(int extendedId, BencodeMap messageMap) {
+            byte[] message = messageMap.toBencodeBytes();
+            ByteBuffer msg = ByteBuffer.allocate(message.length + 6);
+            msg.putInt(message.length + 2);
+            msg.put(EXTENDED);
+            msg.put((byte) extendedId);
+            msg.put(message);
+            msg.flip();
+            send(msg);
+        }
+
+        private void send(ByteBuffer msg) {
+            if (utp) {
+                utpSocket.write(msg);
+                return;
+            }
+            writeQueue.add(msg);
+            try {
+                flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void flush() throws IOException {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer buffer = writeQueue.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void read() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                throw new IOException("连接已经关闭");
+            }
+            onReceived();
+        }
+
+        /**
+         * uTP按顺序收到的数据放入读缓冲区
+         */
+        @Override
+        public void onData(ByteBuffer data) {
+            if (readBuffer.remaining() < data.remaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(readBuffer.capacity() * 2,
+                        readBuffer.position() + data.remaining()));
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+            readBuffer.put(data);
+            try {
+                onReceived();
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onClosed(IOException e) {
+            fail(e != null ? e : new IOException("连接已经关闭"));
+        }
+
+        /**
+         * 处理读缓冲区中所有完整的消息
+         */
+        private void onReceived() throws IOException {
+            readBuffer.flip();
+            while (!future.isDone() && parse()) {
+                // 处理缓冲区中所有完整的消息
+            }
+            readBuffer.compact();
+        }
+
+        /**
+         * 处理缓冲区开头的一个完整消息
+         *
+         * @return 是否处理了消息, 数据不完整时返回false
+         */
+        private boolean parse() throws IOException {
+            if (!handshakeReceived) {
+                if (readBuffer.remaining() < HANDSHAKE_LENGTH) {
+                    return false;
+                }
+                byte[] handshake = new byte[HANDSHAKE_LENGTH];
+                readBuffer.get(handshake);
+                if (!Arrays.equals(Arrays.copyOf(handshake, PROTOCOL_LENGTH), Arrays.copyOf(HANDSHAKE_BYTES, PROTOCOL_LENGTH))
+                        || (handshake[RESERVED_EXTENSION_INDEX] & RESERVED_EXTENSION_BIT) == 0
+                        || !Arrays.equals(Arrays.copyOfRange(handshake, INFO_HASH_OFFSET, INFO_HASH_OFFSET + INFO_HASH_LENGTH), infoHash)) {
+                    throw new IOException("握手失败");
+                }
+                handshakeReceived = true;
+                if (race != null) {
+                    race.onHandshake(this);
+                }
+                return true;
+            }
+            if (readBuffer.remaining() < 4) {
+                return false;
+            }
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+                throw new IOException("消息长度错误:" + length);
+            }
+            if (readBuffer.remaining() < 4 + length) {
+                if (readBuffer.capacity() < 4 + length) {
+                    // 扩大缓冲区,保留未读的数据
+                    ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                    bigger.put(readBuffer).flip();
+                    readBuffer = bigger;
+                }
+                return false;
+            }
+            readBuffer.getInt();
+            int end = readBuffer.position() + length;
+            if (length > 0 && readBuffer.get(readBuffer.position()) == EXTENDED && length >= 2) {
+                ByteBuffer message = readBuffer.duplicate();
+                message.position(readBuffer.position() + 2).limit(end);
+                onExtended(readBuffer.get(readBuffer.position() + 1), message);
+            }
+            readBuffer.position(end);
+            return true;
+        }
+
+        private void onExtended(byte extendedId, ByteBuffer message) throws IOException {
+            if (extendedId == PeerExchange.LOCAL_UT_PEX) {
+                onPeerExchange(message);
+                return;
+            }
+            BencodeMap map = Bencode.parse(message);
+            if (extendedId == EXTENDED_HANDSHAKE) {
+                if (utMetadata >= 0) {
+                    return;
+                }
+                if (!map.containsKey("m") || !map.getBencodeMap("m").containsKey("ut_metadata")
+                        || !map.containsKey("metadata_size")) {
+                    throw new IOException("对方不支持ut_metadata");
+                }
+                utMetadata = (int) map.getBencodeMap("m").getLong("ut_metadata");
+                long metadataSize = map.getLong("metadata_size");
+                logger.fine("metadataSize = " + metadataSize);
+                if (utMetadata <= 0 || metadataSize <= 0 || metadataSize > MAX_METADATA_SIZE) {
+                    throw new IOException("recv peer info error");
+                }
+                String swarmKey = HexUtil.encode(infoHash) + ":" + metadataSize;
+                swarm = loop.swarms.computeIfAbsent(swarmKey, k -> new Swarm(k, loop, infoHash, (int) metadataSize));
+                swarm.connections.add(this);
+                requestMore();
+            } else if (extendedId == LOCAL_UT_METADATA && swarm != null) {
+                onMetadata(map, message);
+            }
+        }
+
+        private void onPeerExchange(ByteBuffer message) {
+            long[] added = PeerExchange.parseAdded(message);
+            logger.fine("收到交换的节点:" + address + " " + added.length);
+            if (peerConsumer != null && added.length > 0) {
+                peerConsumer.accept(added);
+            }
+        }
+
+        /**
+         * 请求直到窗口满.没有可以请求的块时,等待其它节点的请求超时后再试
+         */
+        private void requestMore() {
+            if (future.isDone()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            while (requested.size() < Math.max(pipeline, 1) && !future.isDone()) {
+                int piece = swarm.nextPiece(this, now);
+                if (piece < 0) {
+                    break;
+                }
+                swarm.requestTime[piece] = now;
+                requested.add(piece);
+                BencodeMap request = new BencodeMap();
+                request.putLong("msg_type", MSG_TYPE_REQUEST);
+                request.putLong("piece", piece);
+                sendExtended(utMetadata, request);
+            }
+            if (requested.isEmpty() && !future.isDone() && retryTask == null) {
+                retryTask = timer.schedule(() -> loop.execute(() -> {
+                    retryTask = null;
+                    requestMore();
+                }), stragglerTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * 回复交给{@link Swarm}按块编号放入结果,超出范围的块忽略
+         */
+        private void onMetadata(BencodeMap map, ByteBuffer data) throws IOException {
+            long msgType = map.getLong("msg_type");
+            long piece = map.getLong("piece");
+            if (msgType == MSG_TYPE_REJECT) {
+                throw new IOException("对方拒绝了第 " + piece + " 块");
+            }
+            if (msgType != MSG_TYPE_DATA || piece < 0 || piece >= swarm.pieceCount) {
+                return;
+            }
+            int expected = Math.min(PIECE_LENGTH, swarm.metadata.length - (int) piece * PIECE_LENGTH);
+            if (data.remaining() != expected) {
+                throw new IOException("第 " + piece + " 块长度错误:" + data.remaining());
+            }
+            requested.remove(Integer.valueOf((int) piece));
+            if (swarm.onPiece((int) piece, data, this)) {
+                swarm.complete();
+            } else {
+                requestMore();
+            }
+        }
+
+        private void complete(byte[] metadata) {
+            close();
+            future.complete(metadata);
+        }
+
+        private void fail(Throwable e) {
+            if (future.isDone()) {
+                return;
+            }
+            close();
+            future.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+        }
+
+        private void close() {
+            if (timeoutTask != null) {
+                timeoutTask.cancel();
+            }
+            if (retryTask != null) {
+                retryTask.cancel();
+            }
+            if (swarm != null) {
+                swarm.release(this);
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    //
+                }
+            }
+            if (utpSocket != null) {
+                utpSocket.close();
+            }
+        }
+    }
+
+    /**
+     * 一次竞争连接,开启uTP时每个节点同时用TCP和uTP连接,只在选择器线程中访问
+     */
+    private class Race {
+        private final SelectorLoop loop;
+        private final byte[] infoHash;
+        private final List<InetSocketAddress> addresses;
+        private final ShutdownFlag cancelFlag;
+        private final Consumer<long[]> peerConsumer;
+        private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        private final List<Connection> attempts = new ArrayList<>();
+        private int next;
+        private Connection winner;
+        private Throwable lastError;
+        private WheelTimer.Task staggerTask;
+
+        private Race(SelectorLoop loop, byte[] infoHash, List<InetSocketAddress> addresses, ShutdownFlag cancelFlag,
+                     Consumer<long[]> peerConsumer) {
+            this.loop = loop;
+            this.infoHash = infoHash;
+            this.addresses = addresses;
+            this.cancelFlag = cancelFlag;
+            this.peerConsumer = peerConsumer;
+        }
+
+        /**
+         * 连接下一个节点,并在错开的时间后再连接下一个
+         */
+        private void startNext() {
+            if (staggerTask != null) {
+                staggerTask.cancel();
+                staggerTask = null;
+            }
+            if (future.isDone() || winner != null || cancelFlag.isShutdown() || next >= addresses.size()) {
+                checkFinish();
+                return;
+            }
+            InetSocketAddress address = addresses.get(next++);
+            attempt(open(loop, infoHash, address, cancelFlag, this, false, peerConsumer));
+            if (useUtp) {
+                attempt(open(loop, infoHash, address, cancelFlag, this, true, peerConsumer));
+            }
+            if (next < addresses.size()) {
+                staggerTask = timer.schedule(() -> loop.execute(this::startNext), raceStagger, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void attempt(Connection connection) {
+            attempts.add(connection);
+            connection.future.whenComplete((info, e) -> loop.execute(() -> onAttemptDone(connection, info, e)));
+        }
+
+        /**
+         * 最先握手的节点继续下载,关闭其它连接
+         */
+        private void onHandshake(Connection connection) {
+            if (winner != null) {
+                return;
+            }
+            winner = connection;
+            if (staggerTask != null) {
+                staggerTask.cancel();
+                staggerTask = null;
+            }
+            for (Connection other : new ArrayList<>(attempts)) {
+                if (other != connection) {
+                    other.fail(new ShutdownException());
+                }
+            }
+        }
+
+        /**
+         * 下载成功时结束.下载中的节点失败时继续连接剩下的节点
+         */
+        private void onAttemptDone(Connection connection, byte[] info, Throwable e) {
+            attempts.remove(connection);
+            if (info != null) {
+                future.complete(info);
+                return;
+            }
+            if (!(e instanceof ShutdownException)) {
+                lastError = e;
+            }
+            if (connection == winner) {
+                winner = null;
+            }
+            if (winner == null && (attempts.isEmpty() || !(e instanceof ShutdownException))) {
+                startNext();
+            }
+        }
+
+        private void checkFinish() {
+            if (future.isDone() || !attempts.isEmpty() || winner != null) {
+                return;
+            }
+            if (cancelFlag.isShutdown()) {
+                future.completeExceptionally(new ShutdownException());
+            } else if (next >= addresses.size()) {
+                future.completeExceptionally(lastError != null ? lastError : new IOException("没有可以下载的节点"));
+            }
+        }
+    }
+
+    /**
+     * 同一个种子的所有连接共享的下载进度.每个块分给一个连接,
+     * 请求超时未回复的块再分给其它连接,所有连接收到的块放入同一个缓冲区.
+     * <p>
+     * 校验失败时只有所有块都来自同一个连接,才能确定是该连接发送了错误的数据.
+     * 否则不知道是哪个连接,不结束任何连接,丢弃进度后只从一个连接下载,见{@link #exclusive}.
+     * 只在选择器线程中访问
+     */
+    private class Swarm {
+        private final String key;
+        private final SelectorLoop loop;
+        private final byte[] infoHash;
+        private final byte[] metadata;
+        private final int pieceCount;
+        private final boolean[] received;
+        /**
+         * 每个块最后一次请求的时间,0表示未请求
+         */
+        private final long[] requestTime;
+        /**
+         * 每个块来自哪个连接
+         */
+        private final Connection[] supplier;
+        private final List<Connection> connections = new ArrayList<>();
+        /**
+         * 选择器线程交替处理多个种子,所以每个种子使用自己的MessageDigest
+         */
+        private final MessageDigest messageDigest = MetadataDigest.newDigest();
+        private MetadataDigest digest;
+        private int receivedCount;
+        private boolean isDone;
+        /**
+         * 多个连接的块校验失败后,所有块只从一个连接下载
+         */
+        private boolean singleSource;
+        /**
+         * 只从一个连接下载时的连接,第一个请求块的连接
+         */
+        private Connection exclusive;
+
+        private Swarm(String key, SelectorLoop loop, byte[] infoHash, int metadataSize) {
+            this.key = key;
+            this.loop = loop;
+            this.infoHash = infoHash;
+            this.metadata = new byte[metadataSize];
+            this.pieceCount = (metadataSize + PIECE_LENGTH - 1) / PIECE_LENGTH;
+            this.received = new boolean[pieceCount];
+            this.requestTime = new long[pieceCount];
+            this.supplier = new Connection[pieceCount];
+            this.digest = new MetadataDigest(messageDigest, metadata);
+        }
+
+        /**
+         * 选择下一个要请求的块,优先选择未请求的块,其次选择其它连接请求超时的块
+         *
+         * @param connection 请求的连接
+         * @param now        当前时间
+         * @return 块编号, 没有可以请求的块时返回-1
+         */
+        private int nextPiece(Connection connection, long now) {
+            if (singleSource) {
+                if (exclusive == null) {
+                    exclusive = connection;
+                } else if (exclusive != connection) {
+                    return -1;
+                }
+            }
+            List<Integer> requested = connection.requested;
+            for (int i = 0; i < pieceCount; i++) {
+                if (!received[i] && requestTime[i] == 0) {
+                    return i;
+                }
+            }
+            for (int i = 0; i < pieceCount; i++) {
+                if (!received[i] && now - requestTime[i] >= stragglerTimeout && !requested.contains(i)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * 保存收到的块,重复的块忽略.只从一个连接下载时忽略其它连接的块
+         *
+         * @return 是否已经收到所有块
+         */
+        private boolean onPiece(int piece, ByteBuffer data, Connection connection) {
+            if (singleSource && connection != exclusive) {
+                return false;
+            }
+            if (!received[piece]) {
+                data.get(metadata, piece * PIECE_LENGTH, data.remaining());
+                received[piece] = true;
+                supplier[piece] = connection;
+                receivedCount++;
+                digest.update(received);
+            }
+            return receivedCount == pieceCount;
+        }
+
+        /**
+         * 校验种子信息,成功时结束所有连接.收到块时已经增量计算了SHA-1,这里只计算剩余的部分.
+         * 失败时只结束发送了所有块的连接,丢弃进度重新下载
+         */
+        private void complete() {
+            if (digest.verify(infoHash)) {
+                isDone = true;
+                loop.swarms.remove(key);
+                for (Connection connection : new ArrayList<>(connections)) {
+                    connection.complete(metadata);
+                }
+                return;
+            }
+            Connection liar = supplier[0];
+            for (Connection connection : supplier) {
+                if (connection != liar) {
+                    liar = null;
+                    break;
+                }
+            }
+            if (liar == null) {
+                logger.fine("种子信息校验失败,改为只从一个节点下载:" + key);
+                singleSource = true;
+            }
+            reset();
+            if (liar != null) {
+                liar.fail(new IOException("种子信息校验失败"));
+            }
+            for (Connection other : new ArrayList<>(connections)) {
+                other.requestMore();
+            }
+        }
+
+        /**
+         * 丢弃所有已经收到的块和请求
+         */
+        private void reset() {
+            Arrays.fill(received, false);
+            Arrays.fill(requestTime, 0);
+            Arrays.fill(supplier, null);
+            receivedCount = 0;
+            exclusive = null;
+            digest = new MetadataDigest(messageDigest, metadata);
+            for (Connection connection : connections) {
+                connection.requested.clear();
+            }
+        }
+
+        /**
+         * 连接结束,未收到的块可以立即请求其它连接.只从该连接下载时丢弃它的块.没有连接时丢弃下载进度
+         */
+        private void release(Connection connection) {
+            connections.remove(connection);
+            if (isDone) {
+                return;
+            }
+            if (connection == exclusive) {
+                reset();
+            }
+            for (int piece : connection.requested) {
+                requestTime[piece] = 0;
+            }
+            if (connections.isEmpty()) {
+                loop.swarms.remove(key);
+                return;
+            }
+            for (Connection other : new ArrayList<>(connections)) {
+                other.requestMore();
+            }
+        }
+    }
+}
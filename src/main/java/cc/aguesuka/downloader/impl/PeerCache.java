@@ -0,0 +1,237 @@
+package cc.aguesuka.downloader.impl;
+
+import cc.aguesuka.dht.connection.NodeId;
+import cc.aguesuka.util.AddressUtil;
+import cc.aguesuka.util.inject.annotation.Config;
+import cc.aguesuka.util.inject.annotation.Init;
+import cc.aguesuka.util.log.LogSetting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * info hash到种子节点地址的缓存,按最近使用淘汰,超过ttl的记录不再使用
+ * <p>
+ * 同一个info hash再次下载时先连接缓存中的节点,不需要dht查询.
+ * 配置了文件时,启动时读取,关闭时保存.文件格式为大端序,4字节魔数,4字节记录数,
+ * 每条记录20字节info hash,8字节更新时间ms,4字节地址数,之后每个地址6字节
+ *
+ * @author :yangmingyuxing
+ * 2026/10/18 21:55
+ */
+public class PeerCache implements AutoCloseable {
+    private static final int MAGIC = 0x50455231;
+    private static final int HEADER_LENGTH = 8;
+    private static final int RECORD_HEADER_LENGTH = NodeId.LENGTH + 8 + 4;
+    private static Logger logger = Logger.getLogger(LogSetting.DEFAULT_NAME);
+    /**
+     * 最多缓存的info hash数量
+     */
+    @Config("peerCache.size")
+    private int maxSize;
+    /**
+     * 每个info hash最多缓存的地址数
+     */
+    @Config("peerCache.maxPeers")
+    private int maxPeers;
+    /**
+     * 超过该时间的记录不再使用
+     */
+    @Config("peerCache.ttl")
+    private int ttl;
+    /**
+     * 超过该时间的记录在使用的同时在后台重新查询
+     */
+    @Config("peerCache.refresh")
+    private int refreshTime;
+    /**
+     * 缓存文件,为空时不保存
+     */
+    @Config("peerCache.file")
+    private String file;
+    private LinkedHashMap<NodeId, CachedPeers> cache;
+
+    @Init
+    private void init() {
+        cache = new LinkedHashMap<NodeId, CachedPeers>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<NodeId, CachedPeers> eldest) {
+                return size() > maxSize;
+            }
+        };
+        if (!file.isEmpty() && Files.exists(Paths.get(file))) {
+            try {
+                load(Paths.get(file));
+                logger.info("读取种子节点缓存:" + cache.size());
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "读取种子节点缓存失败:" + file, e);
+            }
+        }
+    }
+
+    /**
+     * 获得缓存的地址
+     *
+     * @param infoHash info hash
+     * @return 压缩的地址, 没有或已经过期时返回null
+     */
+    public synchronized long[] get(NodeId infoHash) {
+        CachedPeers entry = cache.get(infoHash);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.updateTime > ttl) {
+            cache.remove(infoHash);
+            return null;
+        }
+        return Arrays.copyOf(entry.peers, entry.size);
+    }
+
+    /**
+     * 缓存的记录是否需要重新查询
+     *
+     * @param infoHash info hash
+     * @return 没有记录或者记录超过刷新时间
+     */
+    public synchronized boolean needRefresh(NodeId infoHash) {
+        CachedPeers entry = cache.get(infoHash);
+        return entry == null || System.currentTimeMillis() - entry.updateTime > refreshTime;
+    }
+
+    /**
+     * 添加dht查询到的地址,超过上限的地址丢弃
+     *
+     * @param infoHash info hash
+     * @param peers    压缩的地址
+     */
+    public synchronized void addPeers(NodeId infoHash, long[] peers) {
+        if (peers.length == 0) {
+            return;
+        }
+        CachedPeers entry = cache.computeIfAbsent(infoHash, k -> new CachedPeers());
+        entry.updateTime = System.currentTimeMillis();
+        for (long peer : peers) {
+            entry.add(peer, maxPeers);
+        }
+    }
+
+    private void load(Path path) throws IOException {
+        long now = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC) {
+                throw new IOException("缓存文件格式错误");
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                NodeId infoHash = NodeId.read(buffer);
+                long updateTime = buffer.getLong();
+                int size = buffer.getInt();
+                CachedPeers entry = new CachedPeers();
+                entry.updateTime = updateTime;
+                for (int j = 0; j < size; j++) {
+                    entry.add(AddressUtil.read(buffer), maxPeers);
+                }
+                if (now - updateTime <= ttl) {
+                    cache.put(infoHash, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * 保存到文件,先写临时文件再替换
+     *
+     * @throws IOException 保存失败
+     */
+    public void save() throws IOException {
+        List<Map.Entry<NodeId, CachedPeers>> entries;
+        int length = HEADER_LENGTH;
+        synchronized (this) {
+            entries = new ArrayList<>(cache.size());
+            for (Map.Entry<NodeId, CachedPeers> e : cache.entrySet()) {
+                CachedPeers copy = new CachedPeers();
+                copy.updateTime = e.getValue().updateTime;
+                copy.peers = Arrays.copyOf(e.getValue().peers, e.getValue().size);
+                copy.size = copy.peers.length;
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), copy));
+                length += RECORD_HEADER_LENGTH + copy.size * AddressUtil.COMPACT_LENGTH;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(MAGIC);
+        buffer.putInt(entries.size());
+        for (Map.Entry<NodeId, CachedPeers> e : entries) {
+            e.getKey().write(buffer);
+            buffer.putLong(e.getValue().updateTime);
+            buffer.putInt(e.getValue().size);
+            for (int i = 0; i < e.getValue().size; i++) {
+                AddressUtil.write(buffer, e.getValue().peers[i]);
+            }
+        }
+        buffer.flip();
+        Path path = Paths.get(file).toAbsolutePath();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 配置了文件时保存
+     */
+    @Override
+    public void close() {
+        if (file.isEmpty()) {
+            return;
+        }
+        try {
+            save();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "保存种子节点缓存失败", e);
+        }
+    }
+
+    /**
+     * 一个info hash的种子节点
+     */
+    private static class CachedPeers {
+        private long[] peers = new long[4];
+        private int size;
+        private long updateTime;
+
+        private void add(long peer, int maxPeers) {
+            for (int i = 0; i < size; i++) {
+                if (peers[i] == peer) {
+                    return;
+                }
+            }
+            if (size >= maxPeers) {
+                return;
+            }
+            if (size == peers.length) {
+                peers = Arrays.copyOf(peers, size * 2);
+            }
+            peers[size++] = peer;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package cc.aguesuka.downloader.impl;
+
+import cc.aguesuka.util.AddressUtil;
+import cc.aguesuka.util.bencode.Bencode;
+import cc.aguesuka.util.bencode.BencodeMap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 种子节点交换 http://www.bittorrent.org/beps/bep_0011.html
+ * <p>
+ * 扩展握手时声明支持ut_pex,对方会定时发送它连接的种子节点.
+ * 只使用added中的ipv4节点,dropped和added6忽略.
+ * 交换的节点只是附加的信息,格式错误的消息直接忽略,不影响种子信息的下载
+ *
+ * @author :yangmingyuxing
+ * 2026/10/19 01:20
+ */
+final class PeerExchange {
+    static final String UT_PEX = "ut_pex";
+    /**
+     * 本机的ut_pex扩展编号
+     */
+    static final int LOCAL_UT_PEX = 2;
+    /**
+     * 一个消息中最多使用的节点数,BEP 11 规定不超过50个
+     */
+    private static final int MAX_ADDED = 50;
+
+    private PeerExchange() {
+    }
+
+    /**
+     * 解析ut_pex消息中新增的节点,端口为0的节点丢弃
+     *
+     * @param message ut_pex消息,不包括消息类型和扩展消息编号
+     * @return 压缩的地址, 见{@link AddressUtil},格式错误时为空
+     */
+    static long[] parseAdded(ByteBuffer message) {
+        try {
+            return parseAdded(Bencode.parse(message));
+        } catch (RuntimeException e) {
+            return new long[0];
+        }
+    }
+
+    private static long[] parseAdded(BencodeMap message) {
+        if (!message.containsKey("added")) {
+            return new long[0];
+        }
+        byte[] added = message.getByteArray("added");
+        ByteBuffer buffer = ByteBuffer.wrap(added);
+        long[] result = new long[Math.min(added.length / AddressUtil.COMPACT_LENGTH, MAX_ADDED)];
+        int count = 0;
+        while (count < result.length && buffer.remaining() >= AddressUtil.COMPACT_LENGTH) {
+            long address = AddressUtil.read(buffer);
+            if ((address & 0xffff) != 0) {
+                result[count++] = address;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+}
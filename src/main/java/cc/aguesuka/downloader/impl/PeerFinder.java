@@ -2,24 +2,28 @@ package cc.aguesuka.downloader.impl;
 
 import cc.aguesuka.dht.action.DhtAction;
 import cc.aguesuka.dht.connection.Bucket;
+import cc.aguesuka.dht.connection.NodeId;
 import cc.aguesuka.downloader.IMetaDataDownloader;
 import cc.aguesuka.downloader.IPeerFinder;
-import cc.aguesuka.util.bencode.BencodeByteArray;
+import cc.aguesuka.util.AddressUtil;
+import cc.aguesuka.util.DeadAddressCache;
+import cc.aguesuka.util.LongHashSet;
 import cc.aguesuka.util.bencode.BencodeMap;
+import cc.aguesuka.util.concurrent.WorkerPool;
 import cc.aguesuka.util.inject.annotation.Config;
 import cc.aguesuka.util.inject.annotation.Inject;
 import cc.aguesuka.util.log.LogSetting;
+import cc.aguesuka.util.stop.ShutdownFlag;
 import cc.aguesuka.util.stop.Timeout;
 
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,25 +35,45 @@ import static cc.aguesuka.dht.token.KrpcToken.R;
  * 2019/7/25 16:38
  */
 public class PeerFinder implements IPeerFinder {
+    /**
+     * compact node info 的长度,20字节id,4字节ip,2字节端口
+     */
+    private static final int COMPACT_NODE_LENGTH = NodeId.LENGTH + 6;
     @Inject
     private DhtAction dhtAction;
     @Inject
-    private Bucket<BencodeByteArray, InetSocketAddress> bucket;
+    private Bucket<InetSocketAddress> bucket;
+    @Inject
+    private WorkerPool workerPool;
+    @Inject
+    private DeadAddressCache deadAddressCache;
+    @Inject
+    private PeerCache peerCache;
     /**
      * 第一次访问从桶中获得地址的数量
      */
     @Config("dhtAction.getPeerCount")
     private int initVisitCount;
     /**
-     * dht中查询的线程数
+     * dht中同时进行的请求数,即Kademlia中的alpha,请求是异步的,不占用线程
      */
-    @Config("PeerFinder.thread.count")
-    private int threadCount;
+    @Config("PeerFinder.alpha")
+    private int alpha;
     /**
-     * 下载种子的线程数
+     * 每个任务同时下载种子的数量,阻塞的下载者使用{@link WorkerPool}的线程
      */
     @Config("PeerFinder.downloadThread")
     private int downloadThreadCount;
+    /**
+     * 每个任务等待下载的种子节点数量上限,超过的节点丢弃
+     */
+    @Config("PeerFinder.peerQueue.size")
+    private int peerQueueSize;
+    /**
+     * 每次下载竞争连接的种子节点数,见{@link IMetaDataDownloader#raceAsync}
+     */
+    @Config("PeerFinder.race.size")
+    private int raceSize;
     /**
      * 下载种子的超时时间
      */
@@ -63,56 +87,129 @@ public class PeerFinder implements IPeerFinder {
 
     @Override
     public byte[] findPeer(byte[] infoHash, IMetaDataDownloader metaDataDownloader) throws ExecutionException, InterruptedException {
+        CompletableFuture<byte[]> future = findPeerAsync(infoHash, metaDataDownloader);
+        try {
+            return future.get();
+        } finally {
+            future.cancel(false);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> findPeerAsync(byte[] infoHash, IMetaDataDownloader metaDataDownloader) {
         return new DoFinder(this, infoHash, metaDataDownloader).doFind();
     }
 
     /**
      * 内部类,一次任务对应一个类
+     * <p>
+     * Kademlia迭代查询:候选节点按和info hash的异或距离排序,只请求最近的k个未失败的节点,
+     * 同时最多有alpha个请求.最近的k个节点都回复后查询结束
+     * <p>
+     * dht请求在回复或超时时回调,回调中处理结果并发出下一个请求,
+     * get_peers返回的种子节点去重后放入有界的队列,下载数未满时立即取出下载,
+     * dht查询和种子下载同时进行
+     * <p>
+     * 任务结束或被取消时,正在进行的dht请求立即取消,正在下载的socket立即关闭
+     * <p>
+     * 节点和种子的地址用{@link AddressUtil}压缩为long保存,只在发出请求和下载时才创建地址对象.
+     * 最近超时的dht节点和失败的种子节点由{@link DeadAddressCache}跳过.
+     * {@link PeerCache}中有该info hash的种子节点时先直接下载,都失败后才开始dht查询,
+     * 记录较旧时同时在后台查询
+     * <p>
+     * 除了isShutDown,cancelFlag和result以外的字段都由this加锁保护
      */
     private static class DoFinder {
-
-        private static final byte[] EMPTY_ARRAY = new byte[0];
         /**
-         * 下一轮需要访问的dht节点
+         * 查询目标
+         */
+        NodeId target;
+        /**
+         * 候选节点,按到目标的距离排序
          */
-        Set<InetSocketAddress> waitToVisit = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        TreeMap<NodeId, Candidate> candidates;
         /**
-         * 已经访问过的dht节点
+         * 已经加入候选的dht节点地址,同一个地址只加入一次
          */
-        Set<InetSocketAddress> hasVisit = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        LongHashSet hasCandidate = new LongHashSet();
+        /**
+         * 已经请求过的dht节点数
+         */
+        int visitCount;
+        /**
+         * 是否已经开始dht查询,缓存中有种子节点时先不查询
+         */
+        boolean lookupStarted;
+        /**
+         * 最近的k个节点都已回复,不再发出请求
+         */
+        boolean lookupDone;
         /**
          * 已经访问过的种子节点
          */
-        Set<InetSocketAddress> hasGetPeer = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        LongHashSet hasGetPeer = new LongHashSet();
+        /**
+         * 等待下载的种子节点,循环队列
+         */
+        long[] peerQueue;
+        int peerQueueHead;
+        int peerQueueSize;
         /**
          * 该次任务是否已经结束
          */
-        boolean isShutDown;
+        volatile boolean isShutDown;
+        /**
+         * 取消令牌,传给种子下载者
+         */
+        ShutdownFlag cancelFlag = new ShutdownFlag();
+        /**
+         * 正在进行的dht请求
+         */
+        Set<CompletableFuture<BencodeMap>> queries = new HashSet<>();
+        /**
+         * 正在进行的dht请求数
+         */
+        int queryingCount;
+        /**
+         * 正在进行的下载数
+         */
+        int downloadingCount;
+        /**
+         * 是否正在发出请求,防止请求立即失败时回调重入
+         */
+        boolean visiting;
+        /**
+         * 任务结果,下载成功或者没有可访问的节点时完成
+         */
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
         private Logger logger = Logger.getLogger(LogSetting.DEFAULT_NAME);
         private PeerFinder config;
         private byte[] infoHash;
         private IMetaDataDownloader metaDataDownloader;
+
         /**
-         * 获得种子地址任务的线程池
+         * 下载种子的配额
          */
-        private ForkJoinPool forkJoinPool;
-
+        private WorkerPool.Quota downloadQuota;
         /**
-         * 下载种子任务的线程池
+         * 在下载配额中执行任务
          */
-        private ForkJoinPool downloadForkJoinPool;
+        private Executor downloadExecutor;
 
         private DoFinder(PeerFinder config, byte[] infoHash, IMetaDataDownloader metaDataDownloader) {
             this.config = config;
             this.infoHash = infoHash;
             this.metaDataDownloader = metaDataDownloader;
-            forkJoinPool = new ForkJoinPool(config.threadCount);
-            downloadForkJoinPool = new ForkJoinPool(config.downloadThreadCount);
+            target = NodeId.of(infoHash);
+            candidates = new TreeMap<>((a, b) -> target.compareDistance(a, b));
+            downloadQuota = config.workerPool.quota(config.downloadThreadCount);
+            downloadExecutor = downloadQuota::run;
+            peerQueue = new long[Math.max(config.peerQueueSize, 1)];
             isShutDown = false;
         }
 
         /**
-         * 处理返回内容的NODES信息,如果返回的节点未访问过,添加到下一轮访问
+         * 处理返回内容的NODES信息,未见过的节点加入候选
          *
          * @param response get_peers 的返回内容
          */
@@ -120,122 +217,285 @@ public class PeerFinder implements IPeerFinder {
             try {
                 BencodeMap r = response.getBencodeMap(R);
                 ByteBuffer byteBuffer = ByteBuffer.wrap(r.getByteArray(NODES));
-                byte[] id = new byte[20];
-                byte[] host = new byte[4];
-                while (byteBuffer.hasRemaining()) {
-                    byteBuffer.get(id);
-                    byteBuffer.get(host);
-                    int port = 0xffff & byteBuffer.getShort();
-                    InetSocketAddress addr = new InetSocketAddress(InetAddress.getByAddress(host), port);
-                    if (!hasVisit.contains(addr)) {
-                        waitToVisit.add(addr);
-                    }
+                while (byteBuffer.remaining() >= COMPACT_NODE_LENGTH) {
+                    NodeId id = NodeId.read(byteBuffer);
+                    addCandidate(id, AddressUtil.read(byteBuffer));
                 }
-            } catch (RuntimeException | UnknownHostException e) {
+            } catch (RuntimeException e) {
                 //
             }
         }
 
+        void addCandidate(NodeId id, long address) {
+            if (address != AddressUtil.NONE && !candidates.containsKey(id) && hasCandidate.add(address)
+                    && !config.deadAddressCache.isNodeDead(address)) {
+                candidates.put(id, new Candidate(address));
+            }
+        }
+
         /**
-         * 判断是否应该结束
+         * 判断是否应该停止发出dht请求
          *
          * @return 是否应该结束本次任务
          */
         boolean shouldShutDown() {
-            if (hasVisit.size() >= config.maxVisitCount) {
+            if (visitCount >= config.maxVisitCount) {
                 return true;
             }
-            return isShutDown;
+            return isShutDown || lookupDone;
         }
 
         /**
-         * 访问某dht节点,发送getPeer请求,如果返回有种子的节点,尝试下载
-         *
-         * @param address dht节点地址
-         * @return 下载种子成功, 返回非空数组, 里面是种子的Info信息;中断时,返回空数组;没有找到,返回null
+         * 请求最近的k个未失败的节点中还没有请求过的节点,直到同时进行的请求数达到alpha.
+         * 最近的k个节点都已回复时查询结束
          */
-        byte[] getInfoHashFromAddress(InetSocketAddress address) {
-            if (shouldShutDown()) {
-                return EMPTY_ARRAY;
+        synchronized void visitNext() {
+            if (visiting || !lookupStarted) {
+                return;
             }
+            visiting = true;
             try {
-                hasVisit.add(address);
-                BencodeMap response = config.dhtAction.getPeers(infoHash, address, Timeout.getMilliSecond(config.getPeerTimeout));
-                dealNodes(response);
-                return dealValues(response);
-            } catch (SocketTimeoutException e) {
-                logger.log(Level.FINE, address + " 连接超时");
-            } catch (Exception e) {
-                logger.log(Level.WARNING, "连接失败", e);
-            }
-            return null;
-        }
-
-        byte[] dealValues(BencodeMap response) throws ExecutionException, InterruptedException, UnknownHostException {
-            List<InetSocketAddress> address = config.dhtAction.parserGetPeersResultValue(response);
-            if (address.isEmpty()) {
-                return null;
-            }
-            Optional<byte[]> result = downloadForkJoinPool.submit(() -> address.parallelStream()
-                    .filter(addr -> !hasGetPeer.contains(addr))
-                    .map(addr -> {
-                                try {
-                                    if (shouldShutDown()) {
-                                        return EMPTY_ARRAY;
-                                    }
-                                    hasGetPeer.add(addr);
-                                    return metaDataDownloader.downloadMataData(infoHash, addr);
-                                } catch (Exception e) {
-                                    logger.log(Level.FINE, addr + " 下载失败 " + e.getMessage());
-                                    return shouldShutDown() ? EMPTY_ARRAY : null;
-                                }
-                            }
-                    )
-                    .filter(Objects::nonNull)
-                    .findAny())
-                    .get();
-            return result.orElse(null);
-        }
-
-        void initWaitVisit() {
-            config.bucket.get(new BencodeByteArray(infoHash), config.initVisitCount).forEach(
-                    o -> waitToVisit.add(o.getData())
-            );
-        }
-
-        private void shutDown() {
-            isShutDown = true;
+                int k = config.bucket.getK();
+                int closest = 0;
+                boolean allSucceeded = true;
+                // 回复可能在发出请求的线程中立即处理并修改候选,所以遍历结束后再发出请求
+                List<Candidate> toQuery = new ArrayList<>();
+                for (Iterator<Candidate> iterator = candidates.values().iterator();
+                     iterator.hasNext() && closest < k && !shouldShutDown(); ) {
+                    Candidate candidate = iterator.next();
+                    if (candidate.state == Candidate.FAILED) {
+                        continue;
+                    }
+                    closest++;
+                    if (candidate.state == Candidate.SUCCEEDED) {
+                        continue;
+                    }
+                    allSucceeded = false;
+                    if (candidate.state == Candidate.WAITING && queryingCount + toQuery.size() < config.alpha) {
+                        toQuery.add(candidate);
+                    }
+                }
+                for (Candidate candidate : toQuery) {
+                    query(candidate);
+                }
+                if (allSucceeded && queryingCount == 0) {
+                    lookupDone = true;
+                }
+                checkFinish();
+            } finally {
+                visiting = false;
+            }
         }
 
-        byte[] doFind() throws ExecutionException, InterruptedException {
-            initWaitVisit();
+        private void query(Candidate candidate) {
+            candidate.state = Candidate.QUERYING;
+            visitCount++;
+            queryingCount++;
+            CompletableFuture<BencodeMap> future = config.dhtAction.getPeers(infoHash,
+                    AddressUtil.toAddress(candidate.address),
+                    Timeout.getMilliSecond(config.getPeerTimeout));
+            queries.add(future);
+            future.whenComplete((response, e) -> {
+                synchronized (this) {
+                    queries.remove(future);
+                }
+                onGetPeers(candidate, response, e);
+            });
+        }
 
+        /**
+         * getPeer请求完成的回调,如果返回有种子的节点,尝试下载
+         *
+         * @param candidate dht节点
+         * @param response  回复,失败时为null
+         * @param e         失败原因,成功时为null
+         */
+        synchronized void onGetPeers(Candidate candidate, BencodeMap response, Throwable e) {
+            queryingCount--;
+            if (e instanceof CompletionException) {
+                e = e.getCause();
+            }
+            if (e != null) {
+                candidate.state = Candidate.FAILED;
+                if (isShutDown) {
+                    logger.log(Level.FINE, AddressUtil.toAddress(candidate.address) + " 请求已取消");
+                } else if (e instanceof SocketTimeoutException) {
+                    config.deadAddressCache.markNodeDead(candidate.address);
+                    logger.log(Level.FINE, AddressUtil.toAddress(candidate.address) + " 连接超时");
+                } else {
+                    logger.log(Level.WARNING, "连接失败", e);
+                }
+            } else {
+                candidate.state = Candidate.SUCCEEDED;
+                dealNodes(response);
+                dealValues(response);
+            }
+            visitNext();
+        }
+
+        void dealValues(BencodeMap response) {
+            long[] address;
+            try {
+                address = config.dhtAction.parserGetPeersValues(response);
+            } catch (RuntimeException e) {
+                return;
+            }
+            config.peerCache.addPeers(target, address);
+            enqueuePeers(address);
+        }
 
-            while (!shouldShutDown()) {
-                Set<InetSocketAddress> addressHashSet = new HashSet<>(waitToVisit);
-                if (addressHashSet.isEmpty()) {
-                    shutDown();
+        /**
+         * 未下载过的种子节点放入队列并开始下载
+         *
+         * @param address 压缩的地址
+         */
+        void enqueuePeers(long[] address) {
+            for (long addr : address) {
+                if (isShutDown || peerQueueSize >= peerQueue.length) {
                     break;
                 }
+                if (hasGetPeer.add(addr) && !config.deadAddressCache.isPeerDead(addr)) {
+                    peerQueue[(peerQueueHead + peerQueueSize++) % peerQueue.length] = addr;
+                }
+            }
+            fetchNext();
+        }
 
-                waitToVisit.clear();
-                Optional<byte[]> submit = forkJoinPool.submit(
-                        () -> addressHashSet.parallelStream()
-                                .map(this::getInfoHashFromAddress)
-                                // 只有在非空的时候提前结束 如果数组为空,代表未下载种子但是 shouldShutDown()返回了true
-                                .filter(Objects::nonNull)
-                                .findAny()).get();
-                if (submit.isPresent()) {
-                    byte[] bytes = submit.get();
-                    if (bytes.length > 0) {
-                        isShutDown = true;
-                        logger.fine("info信息下载完成");
-                        return bytes;
-                    }
+        /**
+         * 下载中对方交换的种子节点和get_peers返回的一样处理,不需要再查询DHT
+         *
+         * @param address 压缩的地址
+         */
+        private synchronized void onPeerExchange(long[] address) {
+            if (isShutDown) {
+                return;
+            }
+            config.peerCache.addPeers(target, address);
+            enqueuePeers(address);
+        }
+
+        /**
+         * 从队列中每次取出多个种子节点竞争下载,直到同时进行的下载数达到上限
+         */
+        void fetchNext() {
+            while (!isShutDown && downloadingCount < config.downloadThreadCount && peerQueueSize > 0) {
+                List<InetSocketAddress> addresses = new ArrayList<>();
+                while (peerQueueSize > 0 && addresses.size() < Math.max(config.raceSize, 1)) {
+                    addresses.add(AddressUtil.toAddress(peerQueue[peerQueueHead]));
+                    peerQueueHead = (peerQueueHead + 1) % peerQueue.length;
+                    peerQueueSize--;
+                }
+                downloadingCount++;
+                // 结果在下载配额的线程中处理,不占用非阻塞下载者的选择器线程
+                metaDataDownloader.raceAsync(infoHash, addresses, cancelFlag, downloadExecutor, this::onPeerExchange)
+                        .whenCompleteAsync((info, e) -> onDownloaded(addresses, info, e), downloadExecutor);
+            }
+        }
+
+        /**
+         * 下载结束的回调
+         *
+         * @param addresses 竞争下载的种子节点地址
+         * @param info      种子信息,失败时为null
+         * @param e         失败原因,成功时为null
+         */
+        private synchronized void onDownloaded(List<InetSocketAddress> addresses, byte[] info, Throwable e) {
+            if (e != null) {
+                logger.log(Level.FINE, addresses + " 下载失败 " + e.getMessage());
+            }
+            downloadingCount--;
+            if (info != null && result.complete(info)) {
+                shutDown();
+                logger.fine("info信息下载完成");
+            }
+            fetchNext();
+            checkFinish();
+        }
+
+        /**
+         * 没有正在进行的请求和下载,并且不会再发出请求时,任务失败
+         */
+        private void checkFinish() {
+            if (!lookupStarted && !isShutDown && downloadingCount == 0 && peerQueueSize == 0) {
+                // 缓存中的节点都失败了
+                startLookup();
+                return;
+            }
+            if (queryingCount == 0 && downloadingCount == 0 && (peerQueueSize == 0 || isShutDown)
+                    && shouldShutDown()) {
+                result.completeExceptionally(new RuntimeException("未找到种子"));
+            }
+        }
+
+        /**
+         * 从路由表中取出离目标最近的节点,开始dht查询
+         */
+        synchronized void startLookup() {
+            if (lookupStarted) {
+                return;
+            }
+            lookupStarted = true;
+            config.bucket.get(target, config.initVisitCount)
+                    .forEach(o -> addCandidate(o.getId(), AddressUtil.pack(o.getData())));
+            visitNext();
+        }
+
+        /**
+         * 停止任务,取消正在进行的dht请求和下载
+         */
+        private synchronized void shutDown() {
+            if (isShutDown) {
+                return;
+            }
+            isShutDown = true;
+            cancelFlag.shutdown();
+            for (CompletableFuture<BencodeMap> future : new ArrayList<>(queries)) {
+                future.cancel(false);
+            }
+        }
+
+        /**
+         * 开始查询,不阻塞
+         *
+         * @return 任务结果, 结束或被取消时停止查询和下载
+         */
+        CompletableFuture<byte[]> doFind() {
+            result.whenComplete((info, e) -> {
+                shutDown();
+                downloadQuota.close();
+            });
+            long[] cached = config.peerCache.get(target);
+            synchronized (this) {
+                if (cached != null) {
+                    logger.fine("使用缓存的种子节点:" + cached.length);
+                    enqueuePeers(cached);
+                }
+                if (cached == null || config.peerCache.needRefresh(target)) {
+                    startLookup();
+                } else {
+                    checkFinish();
                 }
             }
+            return result;
+        }
+    }
+
+    /**
+     * 迭代查询中的候选节点
+     */
+    private static class Candidate {
+        private static final int WAITING = 0;
+        private static final int QUERYING = 1;
+        private static final int SUCCEEDED = 2;
+        private static final int FAILED = 3;
+        /**
+         * 压缩的地址
+         */
+        private final long address;
+        private int state = WAITING;
 
-            throw new RuntimeException("未找到种子");
+        private Candidate(long address) {
+            this.address = address;
         }
     }
 }
@@ -0,0 +1,170 @@
+package cc.aguesuka.downloader.utp;
+
+import cc.aguesuka.util.log.LogSetting;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 多个uTP连接共用一个UDP端口,按连接id分发收到的包.
+ * 不是线程安全的,所有方法必须在注册的选择器所在的线程中调用,
+ * 选择器返回时调用{@link #onReadable()},并定时调用{@link #tick()}处理重传
+ *
+ * @author :yangmingyuxing
+ * 2026/10/19 01:00
+ */
+public class UtpMultiplexer implements AutoCloseable {
+    /**
+     * 调用{@link #tick()}的间隔ms
+     */
+    public static final int TICK_INTERVAL = 50;
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+    private static final int SEND_BUFFER_SIZE = UtpPacket.HEADER_LENGTH + 2 + 32 + UtpSocket.MAX_PAYLOAD;
+    private static Logger logger = Logger.getLogger(LogSetting.DEFAULT_NAME);
+    private final DatagramChannel channel;
+    /**
+     * key为接收的连接id
+     */
+    private final Map<Integer, UtpSocket> sockets = new HashMap<>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+    private final Random random = new Random();
+
+    /**
+     * 打开一个随机端口并注册到选择器,附件为this
+     *
+     * @param selector 选择器
+     * @throws IOException 打开端口失败
+     */
+    public UtpMultiplexer(Selector selector) throws IOException {
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(null);
+        channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * 开始连接
+     *
+     * @param address  对方地址
+     * @param listener 连接事件
+     * @return 连接
+     */
+    public UtpSocket connect(InetSocketAddress address, UtpSocket.Listener listener) {
+        int receiveId;
+        do {
+            receiveId = random.nextInt(UtpPacket.SEQ_MASK + 1);
+        } while (sockets.containsKey(receiveId));
+        UtpSocket socket = new UtpSocket(this, address, receiveId, listener);
+        sockets.put(receiveId, socket);
+        socket.connect();
+        return socket;
+    }
+
+    /**
+     * 接收所有到达的包并分发,格式错误和未知连接的包丢弃
+     */
+    public void onReadable() {
+        for (; ; ) {
+            receiveBuffer.clear();
+            SocketAddress from;
+            try {
+                from = channel.receive(receiveBuffer);
+            } catch (IOException e) {
+                logger.log(Level.FINE, "uTP接收失败", e);
+                return;
+            }
+            if (from == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            UtpPacket packet;
+            try {
+                packet = UtpPacket.read(receiveBuffer);
+            } catch (IOException e) {
+                logger.fine("uTP包错误:" + from + " " + e.getMessage());
+                continue;
+            }
+            UtpSocket socket = sockets.get(packet.connectionId);
+            if (socket == null || !socket.getAddress().equals(from)) {
+                continue;
+            }
+            try {
+                socket.onPacket(packet, receiveBuffer);
+            } catch (RuntimeException e) {
+                fail(socket, e);
+            }
+        }
+    }
+
+    /**
+     * 处理所有连接的重传超时
+     */
+    public void tick() {
+        long now = System.currentTimeMillis();
+        for (UtpSocket socket : new ArrayList<>(sockets.values())) {
+            try {
+                socket.tick(now);
+            } catch (RuntimeException e) {
+                fail(socket, e);
+            }
+        }
+    }
+
+    /**
+     * 一个连接处理出错时只关闭该连接
+     */
+    private void fail(UtpSocket socket, RuntimeException e) {
+        logger.log(Level.WARNING, "uTP连接异常:" + socket.getAddress(), e);
+        socket.closeWith(new IOException(e));
+    }
+
+    public boolean isEmpty() {
+        return sockets.isEmpty();
+    }
+
+    void send(InetSocketAddress address, UtpPacket header, ByteBuffer payload) {
+        sendBuffer.clear();
+        header.write(sendBuffer);
+        if (payload != null) {
+            sendBuffer.put(payload);
+        }
+        sendBuffer.flip();
+        try {
+            // 发送缓冲区满时丢弃,由重传处理
+            channel.send(sendBuffer, address);
+        } catch (IOException e) {
+            logger.fine("uTP发送失败:" + address + " " + e.getMessage());
+        }
+    }
+
+    void remove(UtpSocket socket) {
+        sockets.remove(socket.getReceiveId());
+    }
+
+    /**
+     * 关闭端口,所有连接以错误结束
+     */
+    @Override
+    public void close() {
+        for (UtpSocket socket : new ArrayList<>(sockets.values())) {
+            socket.closeWith(new IOException("uTP端口已关闭"));
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
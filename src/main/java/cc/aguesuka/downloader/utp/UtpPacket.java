@@ -0,0 +1,117 @@
+package cc.aguesuka.downloader.utp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * uTP的包头 http://www.bittorrent.org/beps/bep_0029.html
+ * <p>
+ * 20字节,大端序:类型和版本,第一个扩展,连接id,时间戳,时间戳差,窗口,序号,确认号.
+ * 只支持选择确认扩展,其它扩展跳过
+ *
+ * @author :yangmingyuxing
+ * 2026/10/19 00:10
+ */
+public class UtpPacket {
+    public static final int ST_DATA = 0;
+    public static final int ST_FIN = 1;
+    public static final int ST_STATE = 2;
+    public static final int ST_RESET = 3;
+    public static final int ST_SYN = 4;
+    public static final int HEADER_LENGTH = 20;
+    static final int VERSION = 1;
+    static final int EXTENSION_NONE = 0;
+    static final int EXTENSION_SELECTIVE_ACK = 1;
+    static final int SEQ_MASK = 0xffff;
+    int type;
+    int connectionId;
+    int timestamp;
+    int timestampDiff;
+    int windowSize;
+    int seqNr;
+    int ackNr;
+    /**
+     * 选择确认的位图,第i位表示ackNr+2+i已经收到,没有时为null
+     */
+    byte[] selectiveAck;
+
+    /**
+     * 从buffer读取包头和扩展,之后buffer的position在数据开始的位置
+     *
+     * @param buffer 收到的包
+     * @return 包头
+     * @throws IOException 格式错误
+     */
+    static UtpPacket read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            throw new IOException("uTP包太短");
+        }
+        UtpPacket packet = new UtpPacket();
+        int typeVersion = buffer.get() & 0xff;
+        if ((typeVersion & 0xf) != VERSION || (typeVersion >> 4) > ST_SYN) {
+            throw new IOException("uTP包头错误");
+        }
+        packet.type = typeVersion >> 4;
+        int extension = buffer.get() & 0xff;
+        packet.connectionId = buffer.getShort() & 0xffff;
+        packet.timestamp = buffer.getInt();
+        packet.timestampDiff = buffer.getInt();
+        packet.windowSize = buffer.getInt();
+        packet.seqNr = buffer.getShort() & SEQ_MASK;
+        packet.ackNr = buffer.getShort() & SEQ_MASK;
+        while (extension != EXTENSION_NONE) {
+            if (buffer.remaining() < 2) {
+                throw new IOException("uTP扩展错误");
+            }
+            int next = buffer.get() & 0xff;
+            int length = buffer.get() & 0xff;
+            if (buffer.remaining() < length) {
+                throw new IOException("uTP扩展错误");
+            }
+            if (extension == EXTENSION_SELECTIVE_ACK) {
+                packet.selectiveAck = new byte[length];
+                buffer.get(packet.selectiveAck);
+            } else {
+                buffer.position(buffer.position() + length);
+            }
+            extension = next;
+        }
+        return packet;
+    }
+
+    /**
+     * 写入包头和扩展
+     *
+     * @param buffer 发送缓冲区
+     */
+    void write(ByteBuffer buffer) {
+        buffer.put((byte) (type << 4 | VERSION));
+        buffer.put((byte) (selectiveAck == null ? EXTENSION_NONE : EXTENSION_SELECTIVE_ACK));
+        buffer.putShort((short) connectionId);
+        buffer.putInt(timestamp);
+        buffer.putInt(timestampDiff);
+        buffer.putInt(windowSize);
+        buffer.putShort((short) seqNr);
+        buffer.putShort((short) ackNr);
+        if (selectiveAck != null) {
+            buffer.put((byte) EXTENSION_NONE);
+            buffer.put((byte) selectiveAck.length);
+            buffer.put(selectiveAck);
+        }
+    }
+
+    /**
+     * 16位序号的比较,考虑回绕
+     *
+     * @return a在b之前时为负数, 相等为0, 之后为正数
+     */
+    static int compareSeq(int a, int b) {
+        return (short) (a - b);
+    }
+
+    @Override
+    public String toString() {
+        return "UtpPacket{type=" + type + ", connectionId=" + connectionId + ", seqNr=" + seqNr
+                + ", ackNr=" + ackNr + ", windowSize=" + windowSize + '}';
+    }
+}
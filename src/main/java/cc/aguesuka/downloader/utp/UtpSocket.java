@@ -0,0 +1,484 @@
+package cc.aguesuka.downloader.utp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 一个主动发起的uTP连接 http://www.bittorrent.org/beps/bep_0029.html
+ * <p>
+ * 发送窗口由LEDBAT控制:对方回复的时间戳差减去最小值是排队延迟,低于目标延迟时增大窗口,高于时减小.
+ * 乱序收到的包缓存起来并用选择确认告诉对方,对方选择确认了之后3个包时快速重传.
+ * 不是线程安全的,所有方法必须在{@link UtpMultiplexer}所在的线程中调用
+ *
+ * @author :yangmingyuxing
+ * 2026/10/19 00:30
+ */
+public class UtpSocket {
+    /**
+     * 每个包最多的数据长度,加上包头不超过常见的MTU
+     */
+    static final int MAX_PAYLOAD = 1200;
+    private static final int MIN_WINDOW = MAX_PAYLOAD;
+    private static final int INIT_WINDOW = 3 * MAX_PAYLOAD;
+    private static final int MAX_WINDOW = 1024 * 1024;
+    /**
+     * LEDBAT目标排队延迟us
+     */
+    private static final int TARGET_DELAY = 100_000;
+    /**
+     * 每个往返时间窗口最多增加的字节数
+     */
+    private static final int MAX_WINDOW_INCREASE = 3000;
+    private static final int RECEIVE_WINDOW = 1024 * 1024;
+    private static final int INIT_TIMEOUT = 1000;
+    private static final int MIN_TIMEOUT = 500;
+    private static final int MAX_TIMEOUT = 30_000;
+    /**
+     * 连续超时次数上限,超过则断开
+     */
+    private static final int MAX_TIMEOUT_COUNT = 6;
+    private static final int DUPLICATE_ACKS = 3;
+    /**
+     * 最多缓存乱序包的序号距离
+     */
+    private static final int MAX_REORDER = 1024;
+    /**
+     * 选择确认最长的位图字节数
+     */
+    private static final int MAX_SELECTIVE_ACK = 32;
+    /**
+     * 计算基础延迟的时间段ms,保留最近两段的最小值
+     */
+    private static final int BASE_DELAY_PERIOD = 60_000;
+    private final UtpMultiplexer multiplexer;
+    private final InetSocketAddress address;
+    private final int receiveId;
+    private final int sendId;
+    private final Listener listener;
+    private State state = State.SYN_SENT;
+    private int seqNr = 1;
+    private int ackNr;
+    /**
+     * 已发送未确认的包,按序号排列
+     */
+    private final ArrayDeque<OutPacket> inFlight = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> sendQueue = new ArrayDeque<>();
+    private int bytesInFlight;
+    private int window = INIT_WINDOW;
+    private int peerWindow = MAX_PAYLOAD;
+    private long rtt = -1;
+    private long rttVar;
+    private long timeout = INIT_TIMEOUT;
+    private long timeoutDeadline;
+    private int timeoutCount;
+    private long baseDelay = Long.MAX_VALUE;
+    private long lastBaseDelay = Long.MAX_VALUE;
+    private long baseDelayPeriodStart;
+    /**
+     * 最后收到的包的单向延迟,放在发出的包的时间戳差中
+     */
+    private int replyDelay;
+    /**
+     * 乱序收到的包,key为序号
+     */
+    private final Map<Integer, byte[]> reorder = new HashMap<>();
+    private int reorderBytes;
+    private int finSeq = -1;
+
+    UtpSocket(UtpMultiplexer multiplexer, InetSocketAddress address, int receiveId, Listener listener) {
+        this.multiplexer = multiplexer;
+        this.address = address;
+        this.receiveId = receiveId;
+        this.sendId = (receiveId + 1) & UtpPacket.SEQ_MASK;
+        this.listener = listener;
+    }
+
+    private static int nowMicros() {
+        return (int) (System.nanoTime() / 1000);
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    int getReceiveId() {
+        return receiveId;
+    }
+
+    /**
+     * 发送SYN
+     */
+    void connect() {
+        OutPacket syn = new OutPacket(UtpPacket.ST_SYN, seqNr, new byte[0]);
+        seqNr = (seqNr + 1) & UtpPacket.SEQ_MASK;
+        inFlight.add(syn);
+        transmit(syn, System.currentTimeMillis());
+    }
+
+    /**
+     * 发送数据,连接建立前的数据在连接后发送
+     *
+     * @param data 数据,会被复制
+     */
+    public void write(ByteBuffer data) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data).flip();
+        sendQueue.add(copy);
+        flush(System.currentTimeMillis());
+    }
+
+    /**
+     * 在窗口允许的范围内把待发送的数据分成包发出
+     */
+    private void flush(long now) {
+        if (state != State.CONNECTED) {
+            return;
+        }
+        while (!sendQueue.isEmpty()) {
+            int limit = Math.min(window, peerWindow);
+            int size = Math.min(MAX_PAYLOAD, queuedBytes());
+            if (bytesInFlight > 0 && bytesInFlight + size > limit) {
+                return;
+            }
+            byte[] payload = new byte[size];
+            for (int offset = 0; offset < size; ) {
+                ByteBuffer head = sendQueue.peek();
+                int length = Math.min(head.remaining(), size - offset);
+                head.get(payload, offset, length);
+                offset += length;
+                if (!head.hasRemaining()) {
+                    sendQueue.poll();
+                }
+            }
+            OutPacket packet = new OutPacket(UtpPacket.ST_DATA, seqNr, payload);
+            seqNr = (seqNr + 1) & UtpPacket.SEQ_MASK;
+            inFlight.add(packet);
+            bytesInFlight += size;
+            transmit(packet, now);
+        }
+    }
+
+    private int queuedBytes() {
+        int bytes = 0;
+        for (ByteBuffer buffer : sendQueue) {
+            bytes += buffer.remaining();
+            if (bytes >= MAX_PAYLOAD) {
+                break;
+            }
+        }
+        return bytes;
+    }
+
+    private void transmit(OutPacket packet, long now) {
+        UtpPacket header = header(packet.type, packet.seq);
+        header.connectionId = packet.type == UtpPacket.ST_SYN ? receiveId : sendId;
+        packet.sentTime = now;
+        packet.transmissions++;
+        if (timeoutDeadline == 0) {
+            timeoutDeadline = now + timeout;
+        }
+        multiplexer.send(address, header, ByteBuffer.wrap(packet.payload));
+    }
+
+    private UtpPacket header(int type, int seq) {
+        UtpPacket header = new UtpPacket();
+        header.type = type;
+        header.connectionId = sendId;
+        header.timestamp = nowMicros();
+        header.timestampDiff = replyDelay;
+        header.windowSize = Math.max(RECEIVE_WINDOW - reorderBytes, 0);
+        header.seqNr = seq;
+        header.ackNr = ackNr;
+        return header;
+    }
+
+    /**
+     * 发送确认,有乱序的包时带上选择确认
+     */
+    private void sendState() {
+        UtpPacket header = header(UtpPacket.ST_STATE, seqNr);
+        if (!reorder.isEmpty()) {
+            int maxOffset = 0;
+            for (int seq : reorder.keySet()) {
+                maxOffset = Math.max(maxOffset, UtpPacket.compareSeq(seq, ackNr) - 2);
+            }
+            int length = Math.min((maxOffset / 32 + 1) * 4, MAX_SELECTIVE_ACK);
+            byte[] mask = new byte[length];
+            for (int i = 0; i < length * 8; i++) {
+                if (reorder.containsKey((ackNr + 2 + i) & UtpPacket.SEQ_MASK)) {
+                    mask[i / 8] |= 1 << (i % 8);
+                }
+            }
+            header.selectiveAck = mask;
+        }
+        multiplexer.send(address, header, null);
+    }
+
+    /**
+     * 处理收到的包
+     *
+     * @param packet  包头
+     * @param payload 数据
+     */
+    void onPacket(UtpPacket packet, ByteBuffer payload) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        replyDelay = nowMicros() - packet.timestamp;
+        if (packet.type == UtpPacket.ST_RESET) {
+            closeWith(new IOException("对方重置了uTP连接:" + address));
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (state == State.SYN_SENT) {
+            if (packet.type != UtpPacket.ST_STATE) {
+                return;
+            }
+            state = State.CONNECTED;
+            ackNr = (packet.seqNr - 1) & UtpPacket.SEQ_MASK;
+            peerWindow = packet.windowSize;
+            onAck(packet, now);
+            listener.onConnected();
+            flush(now);
+            return;
+        }
+        peerWindow = packet.windowSize;
+        onAck(packet, now);
+        if (packet.type == UtpPacket.ST_DATA || packet.type == UtpPacket.ST_FIN) {
+            receive(packet, payload);
+        }
+        flush(now);
+    }
+
+    /**
+     * 处理确认号和选择确认,更新往返时间和窗口,必要时快速重传
+     */
+    private void onAck(UtpPacket packet, long now) {
+        int ackedBytes = 0;
+        while (!inFlight.isEmpty() && UtpPacket.compareSeq(inFlight.peek().seq, packet.ackNr) <= 0) {
+            OutPacket acked = inFlight.poll();
+            if (!acked.isSelectiveAcked) {
+                ackedBytes += acked.payload.length;
+                bytesInFlight -= acked.payload.length;
+            }
+            if (acked.transmissions == 1) {
+                updateRtt(now - acked.sentTime);
+            }
+        }
+        if (packet.selectiveAck != null) {
+            int selectiveAcked = 0;
+            for (OutPacket outPacket : inFlight) {
+                int bit = UtpPacket.compareSeq(outPacket.seq, packet.ackNr) - 2;
+                if (bit < 0 || bit >= packet.selectiveAck.length * 8) {
+                    continue;
+                }
+                if ((packet.selectiveAck[bit / 8] & (1 << (bit % 8))) != 0) {
+                    selectiveAcked++;
+                    if (!outPacket.isSelectiveAcked) {
+                        outPacket.isSelectiveAcked = true;
+                        ackedBytes += outPacket.payload.length;
+                        bytesInFlight -= outPacket.payload.length;
+                    }
+                }
+            }
+            OutPacket first = inFlight.peek();
+            if (first != null && !first.isSelectiveAcked && !first.isFastResent && selectiveAcked >= DUPLICATE_ACKS) {
+                first.isFastResent = true;
+                window = Math.max(window / 2, MIN_WINDOW);
+                transmit(first, now);
+            }
+        }
+        if (ackedBytes > 0 || inFlight.isEmpty()) {
+            timeoutCount = 0;
+            timeoutDeadline = inFlight.isEmpty() ? 0 : now + timeout;
+        }
+        if (ackedBytes > 0) {
+            updateWindow(ackedBytes, packet.timestampDiff & 0xffffffffL, now);
+        }
+    }
+
+    private void updateRtt(long sample) {
+        if (rtt < 0) {
+            rtt = sample;
+            rttVar = sample / 2;
+        } else {
+            long delta = rtt - sample;
+            rttVar += (Math.abs(delta) - rttVar) / 4;
+            rtt += (sample - rtt) / 8;
+        }
+        timeout = Math.min(Math.max(rtt + rttVar * 4, MIN_TIMEOUT), MAX_TIMEOUT);
+    }
+
+    /**
+     * LEDBAT,按排队延迟和目标延迟的差调整窗口
+     *
+     * @param ackedBytes 新确认的字节数
+     * @param delay      对方测得的单向延迟us,包括两边时钟的差
+     * @param now        当前时间
+     */
+    private void updateWindow(int ackedBytes, long delay, long now) {
+        if (delay == 0) {
+            return;
+        }
+        if (now - baseDelayPeriodStart > BASE_DELAY_PERIOD) {
+            baseDelayPeriodStart = now;
+            lastBaseDelay = baseDelay;
+            baseDelay = Long.MAX_VALUE;
+        }
+        baseDelay = Math.min(baseDelay, delay);
+        long queuingDelay = delay - Math.min(baseDelay, lastBaseDelay);
+        double offTarget = (TARGET_DELAY - queuingDelay) / (double) TARGET_DELAY;
+        double windowFactor = Math.min(ackedBytes, window) / (double) Math.max(ackedBytes, window);
+        window += (int) (MAX_WINDOW_INCREASE * offTarget * windowFactor);
+        window = Math.min(Math.max(window, MIN_WINDOW), MAX_WINDOW);
+    }
+
+    /**
+     * 按序号交付数据,乱序的包先缓存
+     */
+    private void receive(UtpPacket packet, ByteBuffer payload) {
+        if (packet.type == UtpPacket.ST_FIN) {
+            finSeq = packet.seqNr;
+        }
+        int distance = UtpPacket.compareSeq(packet.seqNr, ackNr);
+        if (distance == 1) {
+            ackNr = packet.seqNr;
+            if (!deliver(payload)) {
+                return;
+            }
+            for (byte[] next = reorder.remove((ackNr + 1) & UtpPacket.SEQ_MASK); next != null;
+                 next = reorder.remove((ackNr + 1) & UtpPacket.SEQ_MASK)) {
+                ackNr = (ackNr + 1) & UtpPacket.SEQ_MASK;
+                reorderBytes -= next.length;
+                if (!deliver(ByteBuffer.wrap(next))) {
+                    return;
+                }
+            }
+        } else if (distance > 1 && distance < MAX_REORDER && reorderBytes + payload.remaining() <= RECEIVE_WINDOW
+                && !reorder.containsKey(packet.seqNr)) {
+            byte[] data = new byte[payload.remaining()];
+            payload.get(data);
+            reorder.put(packet.seqNr, data);
+            reorderBytes += data.length;
+        }
+        sendState();
+        if (finSeq >= 0 && ackNr == finSeq) {
+            closeWith(null);
+        }
+    }
+
+    /**
+     * @return 连接是否仍然打开
+     */
+    private boolean deliver(ByteBuffer payload) {
+        if (payload.hasRemaining()) {
+            listener.onData(payload);
+        }
+        return state != State.CLOSED;
+    }
+
+    /**
+     * 定时调用,处理重传超时
+     *
+     * @param now 当前时间ms
+     */
+    void tick(long now) {
+        if (state == State.CLOSED || timeoutDeadline == 0 || now < timeoutDeadline) {
+            return;
+        }
+        if (++timeoutCount > MAX_TIMEOUT_COUNT) {
+            closeWith(new SocketTimeoutException("uTP连接超时:" + address));
+            return;
+        }
+        window = MIN_WINDOW;
+        timeout = Math.min(timeout * 2, MAX_TIMEOUT);
+        timeoutDeadline = 0;
+        for (OutPacket packet : inFlight) {
+            if (!packet.isSelectiveAcked) {
+                transmit(packet, now);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 关闭连接,已连接时发送FIN,不等待对方确认
+     */
+    public void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        if (state == State.CONNECTED) {
+            UtpPacket fin = header(UtpPacket.ST_FIN, seqNr);
+            multiplexer.send(address, fin, null);
+        }
+        state = State.CLOSED;
+        multiplexer.remove(this);
+    }
+
+    /**
+     * 对方关闭或者出错,通知监听者
+     *
+     * @param e 错误,正常关闭时为null
+     */
+    void closeWith(IOException e) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        multiplexer.remove(this);
+        listener.onClosed(e);
+    }
+
+    private enum State {
+        SYN_SENT, CONNECTED, CLOSED
+    }
+
+    /**
+     * 连接事件,在{@link UtpMultiplexer}所在的线程中调用
+     */
+    public interface Listener {
+        /**
+         * 连接建立
+         */
+        void onConnected();
+
+        /**
+         * 按顺序收到数据
+         *
+         * @param data 数据,只在调用期间有效
+         */
+        void onData(ByteBuffer data);
+
+        /**
+         * 对方关闭连接或者出错
+         *
+         * @param e 错误,对方正常关闭时为null
+         */
+        void onClosed(IOException e);
+    }
+
+    private static class OutPacket {
+        private final int type;
+        private final int seq;
+        private final byte[] payload;
+        private long sentTime;
+        private int transmissions;
+        private boolean isSelectiveAcked;
+        private boolean isFastResent;
+
+        private OutPacket(int type, int seq, byte[] payload) {
+            this.type = type;
+            this.seq = seq;
+            this.payload = payload;
+        }
+    }
+}
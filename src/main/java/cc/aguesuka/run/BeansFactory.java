@@ -1,15 +1,24 @@
 package cc.aguesuka.run;
 
+import cc.aguesuka.dht.action.BucketMaintainer;
 import cc.aguesuka.dht.action.DhtAction;
 import cc.aguesuka.dht.connection.Bucket;
+import cc.aguesuka.dht.connection.BucketSnapshot;
 import cc.aguesuka.dht.connection.DhtConnectionImpl;
 import cc.aguesuka.dht.connection.DhtHandler;
+import cc.aguesuka.dht.connection.NioDhtConnection;
+import cc.aguesuka.downloader.impl.BatchDownloader;
 import cc.aguesuka.downloader.impl.DoMetaDataDownLoader;
 import cc.aguesuka.downloader.impl.DownloadInfoHash;
 import cc.aguesuka.downloader.impl.InfoHashSaver;
+import cc.aguesuka.downloader.impl.NioMetaDataDownLoader;
+import cc.aguesuka.downloader.impl.PeerCache;
 import cc.aguesuka.downloader.impl.PeerFinder;
+import cc.aguesuka.util.DeadAddressCache;
+import cc.aguesuka.util.concurrent.WorkerPool;
 import cc.aguesuka.util.inject.Injector;
 import cc.aguesuka.util.log.LogSetting;
+import cc.aguesuka.util.stop.WheelTimer;
 
 /**
  * @author :yangmingyuxing
@@ -18,20 +27,65 @@ import cc.aguesuka.util.log.LogSetting;
 @SuppressWarnings("WeakerAccess")
 public class BeansFactory {
     public final static Class<?>[] DHT_CLASSES = new Class<?>[]{
-            Bucket.class, DhtConnectionImpl.class,
-            DhtHandler.class, DhtAction.class,
-            DoMetaDataDownLoader.class
+            Bucket.class, BucketSnapshot.class, DhtHandler.class, DhtAction.class,
+            BucketMaintainer.class
     };
 
     public final static Class<?>[] DOWNLOADER_CLASSES = new Class<?>[]{
-            DoMetaDataDownLoader.class, DownloadInfoHash.class, InfoHashSaver.class, PeerFinder.class
+            DownloadInfoHash.class, InfoHashSaver.class, PeerCache.class,
+            PeerFinder.class, BatchDownloader.class
     };
 
-    public final static Class<?>[] UTIL_CLASSES = new Class<?>[]{LogSetting.class};
+    public final static Class<?>[] UTIL_CLASSES = new Class<?>[]{LogSetting.class, WheelTimer.class, WorkerPool.class,
+            DeadAddressCache.class};
     public final static String CONFIG_FILE = "config.properties";
+    /**
+     * dht连接实现的配置名称,nio 为{@link NioDhtConnection},blocking 为{@link DhtConnectionImpl}
+     */
+    public final static String CONNECTION_KEY = "udp.connection";
+    /**
+     * 种子下载实现的配置名称,nio 为{@link NioMetaDataDownLoader},blocking 为{@link DoMetaDataDownLoader}
+     */
+    public final static String META_DATA_DOWNLOADER_KEY = "peerDownload.connection";
 
     public static Injector createInjector() {
-        return new Injector().addProperties(CONFIG_FILE).addClass(UTIL_CLASSES)
-                .addClass(DHT_CLASSES).addClass(DOWNLOADER_CLASSES).build();
+        Injector injector = new Injector().addProperties(CONFIG_FILE);
+        // 连接必须在DhtAction之前初始化
+        return injector.addClass(UTIL_CLASSES).addClass(connectionClass(injector.getProperty(CONNECTION_KEY)))
+                .addClass(DHT_CLASSES)
+                .addClass(metaDataDownloaderClass(injector.getProperty(META_DATA_DOWNLOADER_KEY)))
+                .addClass(DOWNLOADER_CLASSES).build();
+    }
+
+    /**
+     * 根据配置选择dht连接的实现
+     *
+     * @param connection 配置值
+     * @return dht连接的实现类
+     */
+    public static Class<?> connectionClass(String connection) {
+        if (connection == null || "nio".equals(connection)) {
+            return NioDhtConnection.class;
+        }
+        if ("blocking".equals(connection)) {
+            return DhtConnectionImpl.class;
+        }
+        throw new IllegalArgumentException("未知的dht连接实现:" + connection);
+    }
+
+    /**
+     * 根据配置选择种子下载的实现
+     *
+     * @param connection 配置值
+     * @return 种子下载的实现类
+     */
+    public static Class<?> metaDataDownloaderClass(String connection) {
+        if (connection == null || "nio".equals(connection)) {
+            return NioMetaDataDownLoader.class;
+        }
+        if ("blocking".equals(connection)) {
+            return DoMetaDataDownLoader.class;
+        }
+        throw new IllegalArgumentException("未知的种子下载实现:" + connection);
     }
 }
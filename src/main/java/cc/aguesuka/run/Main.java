@@ -1,20 +1,34 @@
 package cc.aguesuka.run;
 
 import cc.aguesuka.downloader.IDownloadInfoHash;
+import cc.aguesuka.downloader.impl.BatchDownloader;
 import cc.aguesuka.util.HexUtil;
 import cc.aguesuka.util.inject.Injector;
 import cc.aguesuka.util.log.LogSetting;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * 用法: Main [info hash]
+ * 或者 Main -batch [文件],批量下载文件中的info hash,没有文件时从标准输入读取
+ *
  * @author :yangmingyuxing
  * 2019/8/2 12:46
  */
 public class Main {
+    private static final String BATCH = "-batch";
 
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && BATCH.equals(args[0])) {
+            batch(args.length > 1 ? args[1] : null);
+            return;
+        }
         String infoHash;
         if (args.length == 0) {
             infoHash = "5A1A7D6EEB329F9833FFD8CF6003547478BF4795";
@@ -30,4 +44,16 @@ public class Main {
             logger.log(Level.WARNING, e.getMessage(), e);
         }
     }
+
+    private static void batch(String file) {
+        try (Injector injector = BeansFactory.createInjector();
+             BufferedReader reader = file == null
+                     ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                     : Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            injector.instanceByClass(BatchDownloader.class).download(reader);
+        } catch (Exception e) {
+            Logger logger = Logger.getLogger(LogSetting.DEFAULT_NAME);
+            logger.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
 }
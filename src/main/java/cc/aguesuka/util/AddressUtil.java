@@ -0,0 +1,86 @@
+package cc.aguesuka.util;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * ipv4地址和端口压缩为一个long,高16位为0,中间32位为ip,低16位为端口,顺序和compact peer info相同.
+ * 用来在集合中保存大量地址,只在需要收发报文时才转换为{@link InetSocketAddress}
+ *
+ * @author :yangmingyuxing
+ * 2026/10/18 20:40
+ */
+public final class AddressUtil {
+    /**
+     * compact peer info 的长度,4字节ip,2字节端口
+     */
+    public static final int COMPACT_LENGTH = 6;
+    /**
+     * 无法表示的地址,比如ipv6
+     */
+    public static final long NONE = -1;
+    private static final int PORT_BITS = 16;
+    private static final int PORT_MASK = 0xffff;
+
+    private AddressUtil() {
+    }
+
+    /**
+     * 从buffer中读出6字节的compact peer info
+     *
+     * @param buffer buffer
+     * @return 压缩的地址
+     */
+    public static long read(ByteBuffer buffer) {
+        long ip = buffer.getInt() & 0xffffffffL;
+        return ip << PORT_BITS | (buffer.getShort() & PORT_MASK);
+    }
+
+    /**
+     * 写入6字节的compact peer info
+     *
+     * @param buffer  buffer
+     * @param address 压缩的地址
+     */
+    public static void write(ByteBuffer buffer, long address) {
+        buffer.putInt((int) (address >>> PORT_BITS)).putShort((short) address);
+    }
+
+    /**
+     * 压缩地址
+     *
+     * @param address 地址
+     * @return 压缩的地址, 不是ipv4或者未解析时返回{@link #NONE}
+     */
+    public static long pack(InetSocketAddress address) {
+        InetAddress inetAddress = address.getAddress();
+        if (inetAddress == null) {
+            return NONE;
+        }
+        byte[] ip = inetAddress.getAddress();
+        if (ip.length != 4) {
+            return NONE;
+        }
+        long host = (ip[0] & 0xffL) << 24 | (ip[1] & 0xff) << 16 | (ip[2] & 0xff) << 8 | (ip[3] & 0xff);
+        return host << PORT_BITS | (address.getPort() & PORT_MASK);
+    }
+
+    /**
+     * 转换为{@link InetSocketAddress}
+     *
+     * @param address 压缩的地址
+     * @return 地址
+     */
+    public static InetSocketAddress toAddress(long address) {
+        int ip = (int) (address >>> PORT_BITS);
+        byte[] host = {(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip};
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(host), (int) (address & PORT_MASK));
+        } catch (UnknownHostException e) {
+            // 长度为4的数组不会抛出异常
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -20,13 +20,17 @@ public final class ByteUtil {
      * @return {@link Comparator#compare(Object, Object)}
      */
     public static int compareBytes(byte[] a, byte[] b) {
-        Comparator<byte[]> comparator = Comparator.comparingInt(
-                (byte[] bytes) -> bytes.length);
+        if (a.length != b.length) {
+            return Integer.compare(a.length, b.length);
+        }
         for (int i = 0; i < a.length; i++) {
-            int j = i;
-            comparator = comparator.thenComparingInt((byte[] bytes) -> bytes[j] & 0xff);
+            int x = a[i] & 0xff;
+            int y = b[i] & 0xff;
+            if (x != y) {
+                return Integer.compare(x, y);
+            }
         }
-        return comparator.compare(a, b);
+        return 0;
     }
 
 
@@ -0,0 +1,120 @@
+package cc.aguesuka.util;
+
+import cc.aguesuka.util.inject.annotation.Config;
+
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 进程共享的不可用地址缓存,记录连接失败的种子节点和请求超时的dht节点,
+ * 在过期前不再使用,避免每次查询都在同一个地址上等待超时
+ * <p>
+ * 地址用{@link AddressUtil}压缩,种子节点和dht节点分开记录.
+ * 数量超过上限时移除最早加入的地址
+ *
+ * @author :yangmingyuxing
+ * 2026/10/18 21:20
+ */
+public class DeadAddressCache {
+    /**
+     * 第48位区分dht节点和种子节点
+     */
+    private static final long NODE_FLAG = 1L << 48;
+    @Config("deadCache.size")
+    private int maxSize;
+    /**
+     * 种子节点的过期时间
+     */
+    @Config("deadCache.peer.ttl")
+    private int peerTtl;
+    /**
+     * dht节点的过期时间
+     */
+    @Config("deadCache.node.ttl")
+    private int nodeTtl;
+    /**
+     * 地址到过期时间,按加入顺序排列
+     */
+    private final LinkedHashMap<Long, Long> expireMap = new LinkedHashMap<>();
+
+    /**
+     * 记录种子节点不可用
+     *
+     * @param address 种子节点地址
+     */
+    public void markPeerDead(InetSocketAddress address) {
+        long packed = AddressUtil.pack(address);
+        if (packed != AddressUtil.NONE) {
+            mark(packed, peerTtl);
+        }
+    }
+
+    /**
+     * 种子节点是否不可用
+     *
+     * @param address 种子节点地址
+     * @return 在缓存中并且没有过期
+     */
+    public boolean isPeerDead(InetSocketAddress address) {
+        long packed = AddressUtil.pack(address);
+        return packed != AddressUtil.NONE && isDead(packed);
+    }
+
+    /**
+     * @param address 压缩的种子节点地址
+     * @return 在缓存中并且没有过期
+     */
+    public boolean isPeerDead(long address) {
+        return isDead(address);
+    }
+
+    /**
+     * 记录dht节点不可用
+     *
+     * @param address 压缩的dht节点地址
+     */
+    public void markNodeDead(long address) {
+        mark(address | NODE_FLAG, nodeTtl);
+    }
+
+    /**
+     * @param address 压缩的dht节点地址
+     * @return 在缓存中并且没有过期
+     */
+    public boolean isNodeDead(long address) {
+        return isDead(address | NODE_FLAG);
+    }
+
+    private synchronized void mark(long key, int ttl) {
+        long now = System.currentTimeMillis();
+        // 重新加入,移到最后
+        expireMap.remove(key);
+        expireMap.put(key, now + ttl);
+        Iterator<Map.Entry<Long, Long>> iterator = expireMap.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Long> eldest = iterator.next();
+            if (expireMap.size() <= maxSize && eldest.getValue() > now) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+
+    private synchronized boolean isDead(long key) {
+        Long expire = expireMap.get(key);
+        if (expire == null) {
+            return false;
+        }
+        if (expire <= System.currentTimeMillis()) {
+            expireMap.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return expireMap.size();
+    }
+}
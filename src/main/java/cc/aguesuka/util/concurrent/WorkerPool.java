@@ -0,0 +1,177 @@
+package cc.aguesuka.util.concurrent;
+
+import cc.aguesuka.util.inject.annotation.Config;
+import cc.aguesuka.util.inject.annotation.Init;
+
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 进程共享的工作线程池,用于阻塞的任务,比如tcp下载
+ * <p>
+ * 线程数固定,和同时处理的任务数无关.每个任务通过{@link #quota(int)}获得配额,
+ * 限制该任务同时占用的线程数,超过的部分在配额中排队,不会占满公共队列.
+ * 由{@link cc.aguesuka.util.inject.Injector#close()}关闭
+ *
+ * @author :yangmingyuxing
+ * 2026/10/18 19:05
+ */
+public class WorkerPool implements AutoCloseable {
+    @Config("worker.thread.count")
+    private int threadCount;
+    private ThreadPoolExecutor executor;
+
+    @Init
+    private void init() {
+        AtomicInteger counter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "worker." + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 创建配额
+     *
+     * @param limit 同时执行的最大任务数
+     * @return 配额
+     */
+    public Quota quota(int limit) {
+        return new Quota(Math.max(limit, 1));
+    }
+
+    /**
+     * 正在执行和等待执行的任务数
+     *
+     * @return 任务数
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount() + executor.getQueue().size();
+    }
+
+    /**
+     * 停止所有线程,等待中的任务不再执行
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 一个任务的配额,同时最多有limit个子任务在线程池中
+     */
+    public class Quota implements AutoCloseable {
+        private final int limit;
+        private final Queue<Job<?>> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger running = new AtomicInteger();
+        private volatile boolean isClosed;
+
+        private Quota(int limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * 提交子任务
+         *
+         * @param supplier 子任务
+         * @param <T>      结果类型
+         * @return 子任务的结果, 配额关闭时没有执行的任务以{@link CancellationException}结束
+         */
+        public <T> CompletableFuture<T> supply(Supplier<T> supplier) {
+            Job<T> job = new Job<>(supplier);
+            pending.add(job);
+            schedule();
+            return job.future;
+        }
+
+        /**
+         * 提交没有返回值的子任务
+         *
+         * @param runnable 子任务
+         * @return 子任务结束时完成
+         */
+        public CompletableFuture<Void> run(Runnable runnable) {
+            return supply(() -> {
+                runnable.run();
+                return null;
+            });
+        }
+
+        /**
+         * 在配额未满时把等待的子任务交给线程池
+         */
+        private void schedule() {
+            while (!pending.isEmpty()) {
+                int current = running.get();
+                if (current >= limit) {
+                    return;
+                }
+                if (!running.compareAndSet(current, current + 1)) {
+                    continue;
+                }
+                Job<?> job = pending.poll();
+                if (job == null) {
+                    running.decrementAndGet();
+                    continue;
+                }
+                try {
+                    executor.execute(() -> {
+                        try {
+                            job.run(isClosed);
+                        } finally {
+                            running.decrementAndGet();
+                            schedule();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    running.decrementAndGet();
+                    job.future.completeExceptionally(e);
+                }
+            }
+        }
+
+        /**
+         * 关闭配额,等待中的子任务不再执行,正在执行的子任务不受影响
+         */
+        @Override
+        public void close() {
+            isClosed = true;
+            CancellationException cancelled = new CancellationException("配额已关闭");
+            for (Job<?> job = pending.poll(); job != null; job = pending.poll()) {
+                job.future.completeExceptionally(cancelled);
+            }
+        }
+    }
+
+    private static class Job<T> {
+        private final Supplier<T> supplier;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private Job(Supplier<T> supplier) {
+            this.supplier = supplier;
+        }
+
+        private void run(boolean isClosed) {
+            if (isClosed) {
+                future.completeExceptionally(new CancellationException("配额已关闭"));
+                return;
+            }
+            try {
+                future.complete(supplier.get());
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -67,6 +67,28 @@ public class Injector implements AutoCloseable {
         return this;
     }
 
+    /**
+     * 设置配置,覆盖配置文件中的值,必须在{@link this#build()}之前调用
+     *
+     * @param key   配置名称
+     * @param value 配置值
+     * @return this
+     */
+    public Injector setProperty(String key, String value) {
+        properties.setProperty(key, value);
+        return this;
+    }
+
+    /**
+     * 获得配置文件中的值,用于在注入前决定添加哪些依赖
+     *
+     * @param key 配置名称
+     * @return 配置值, 不存在时返回null
+     */
+    public String getProperty(String key) {
+        return properties.getProperty(key);
+    }
+
     /**
      * 注入对象并执行初始化方法
      *
@@ -1,14 +1,70 @@
 package cc.aguesuka.util.stop;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
+ * 停止标志,也用作取消令牌.停止时执行注册的回调,比如关闭socket,让阻塞的操作立即结束
+ *
  * @author :yangmingyuxing
  * 2019/7/29 21:31
  */
 public class ShutdownFlag {
     private volatile boolean isShutdown = false;
+    private List<Runnable> listeners = new ArrayList<>();
 
+    /**
+     * 停止,只在第一次调用时执行回调
+     */
     public void shutdown() {
-        isShutdown = true;
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (isShutdown) {
+                return;
+            }
+            isShutdown = true;
+            toRun = listeners;
+            listeners = new ArrayList<>();
+        }
+        for (Runnable listener : toRun) {
+            listener.run();
+        }
+    }
+
+    public boolean isShutdown() {
+        return isShutdown;
+    }
+
+    /**
+     * 注册停止时的回调,已经停止时立即执行.
+     * 回调引用的对象在停止前不会被回收,所以操作提前结束时要取消注册
+     *
+     * @param listener 回调,必须很快返回
+     * @return 取消注册, 可以多次调用
+     */
+    public Runnable onShutdown(Runnable listener) {
+        synchronized (this) {
+            if (!isShutdown) {
+                listeners.add(listener);
+                return () -> unregister(listener);
+            }
+        }
+        listener.run();
+        return () -> {
+        };
+    }
+
+    private synchronized void unregister(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 已经注册的回调数量
+     *
+     * @return 回调数量
+     */
+    synchronized int listenerCount() {
+        return listeners.size();
     }
 
     public void check() {
@@ -1,9 +1,10 @@
 package cc.aguesuka.util.stop;
 
 import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
 
 /**
- * 超时工具
+ * 超时工具,使用{@link System#nanoTime()}计时
  *
  * @author :yangmingyuxing
  * 2019/7/5 17:43
@@ -44,7 +45,7 @@ public interface Timeout {
                 throw new IllegalArgumentException();
             }
             this.timeout = timeout;
-            startTime = System.currentTimeMillis();
+            startTime = System.nanoTime();
         }
 
         @Override
@@ -52,7 +53,7 @@ public interface Timeout {
             if (isNever()) {
                 return 0;
             } else {
-                int ram = timeout - ((int) (System.currentTimeMillis() - startTime));
+                int ram = timeout - (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
                 if (ram <= 0) {
                     throw new SocketTimeoutException(Integer.toString(ram));
                 }
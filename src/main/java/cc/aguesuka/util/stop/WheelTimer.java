@@ -0,0 +1,240 @@
+package cc.aguesuka.util.stop;
+
+import cc.aguesuka.util.inject.annotation.Config;
+import cc.aguesuka.util.inject.annotation.Init;
+import cc.aguesuka.util.log.LogSetting;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 时间轮定时器
+ * <p>
+ * 所有定时任务共用一个线程.添加和取消任务为O(1),每一格只处理当前格子中的任务,
+ * 到期时间使用{@link System#nanoTime()},不受系统时间调整的影响.
+ * 精度为一格的时间,回调在定时器线程中执行,必须很快返回
+ *
+ * @author :yangmingyuxing
+ * 2026/10/18 14:05
+ */
+public class WheelTimer implements AutoCloseable {
+    private static Logger logger = Logger.getLogger(LogSetting.DEFAULT_NAME);
+    /**
+     * 每次转动时,最多从等待队列中取出的任务数,防止添加任务太快时一直无法转动
+     */
+    private static final int MAX_TRANSFER_COUNT = 100000;
+    /**
+     * 一格的时间ms
+     */
+    @Config("timer.tick")
+    private int tick;
+    /**
+     * 格子数量,会向上取整为2的幂
+     */
+    @Config("timer.wheel.size")
+    private int wheelSize;
+    private Slot[] wheel;
+    private int mask;
+    private long tickNanos;
+    private long startTime;
+    private long tickCount;
+    private Queue<Task> addQueue = new ConcurrentLinkedQueue<>();
+    private Queue<Task> cancelQueue = new ConcurrentLinkedQueue<>();
+    private volatile boolean isStart;
+    private Thread worker;
+
+    @Init
+    private void init() {
+        int size = Integer.highestOneBit(Math.max(wheelSize, 1) - 1) << 1;
+        wheel = new Slot[Math.max(size, 1)];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Slot();
+        }
+        mask = wheel.length - 1;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(tick, 1));
+        startTime = System.nanoTime();
+        isStart = true;
+        worker = new Thread(this::run, "wheel.timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 添加定时任务
+     *
+     * @param callback 到期时在定时器线程中执行的回调
+     * @param delay    延迟
+     * @param unit     延迟的单位
+     * @return 任务, 可以取消
+     */
+    public Task schedule(Runnable callback, long delay, TimeUnit unit) {
+        Task task = new Task(callback, System.nanoTime() + unit.toNanos(Math.max(delay, 0)));
+        addQueue.add(task);
+        return task;
+    }
+
+    private void run() {
+        while (isStart) {
+            long deadline = startTime + (tickCount + 1) * tickNanos;
+            long sleepNanos = deadline - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            removeCancelled();
+            transferAdded();
+            wheel[(int) (tickCount & mask)].expire();
+            tickCount++;
+        }
+    }
+
+    private void removeCancelled() {
+        for (Task task = cancelQueue.poll(); task != null; task = cancelQueue.poll()) {
+            if (task.slot != null) {
+                task.slot.remove(task);
+            }
+        }
+    }
+
+    private void transferAdded() {
+        for (int i = 0; i < MAX_TRANSFER_COUNT; i++) {
+            Task task = addQueue.poll();
+            if (task == null) {
+                return;
+            }
+            if (task.state.get() != Task.INIT) {
+                continue;
+            }
+            long calculated = (task.deadline - startTime) / tickNanos;
+            task.remainingRounds = (calculated - tickCount) / wheel.length;
+            // 已经过期的任务放在当前格子
+            long ticks = Math.max(calculated, tickCount);
+            wheel[(int) (ticks & mask)].add(task);
+        }
+    }
+
+    /**
+     * 停止定时器,未到期的任务不会执行
+     */
+    @Override
+    public void close() {
+        isStart = false;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * 定时任务
+     */
+    public final class Task {
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private final Runnable callback;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+        /**
+         * 以下字段只在定时器线程中访问
+         */
+        private long remainingRounds;
+        private Slot slot;
+        private Task prev;
+        private Task next;
+
+        private Task(Runnable callback, long deadline) {
+            this.callback = callback;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 取消任务
+         *
+         * @return 是否取消成功, 已经执行或者已经取消返回false
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(INIT, CANCELLED)) {
+                cancelQueue.add(this);
+                return true;
+            }
+            return false;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(INIT, EXPIRED)) {
+                return;
+            }
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 时间轮的一格,双向链表
+     */
+    private static final class Slot {
+        private Task head;
+        private Task tail;
+
+        private void add(Task task) {
+            task.slot = this;
+            if (head == null) {
+                head = tail = task;
+            } else {
+                tail.next = task;
+                task.prev = tail;
+                tail = task;
+            }
+        }
+
+        private Task remove(Task task) {
+            Task next = task.next;
+            if (task.prev != null) {
+                task.prev.next = next;
+            }
+            if (task.next != null) {
+                task.next.prev = task.prev;
+            }
+            if (task == head) {
+                head = next;
+            }
+            if (task == tail) {
+                tail = task.prev;
+            }
+            task.prev = null;
+            task.next = null;
+            task.slot = null;
+            return next;
+        }
+
+        /**
+         * 执行本轮到期的任务,其余任务的轮数减一
+         */
+        private void expire() {
+            Task task = head;
+            while (task != null) {
+                if (task.remainingRounds <= 0) {
+                    Task next = remove(task);
+                    task.expire();
+                    task = next;
+                } else if (task.state.get() == Task.CANCELLED) {
+                    task = remove(task);
+                } else {
+                    task.remainingRounds--;
+                    task = task.next;
+                }
+            }
+        }
+    }
+}
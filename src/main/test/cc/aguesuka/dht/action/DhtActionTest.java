@@ -25,7 +25,7 @@ public class DhtActionTest {
         try (Injector injector = BeansFactory.createInjector()) {
             DhtAction dhtAction = injector.instanceByClass(DhtAction.class);
             InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("218.204.144.196"), 1373);
-            dhtAction.getPeers(HexUtil.decode("25A10C0D410CB98352A8256219256FB31989B2EC"), address, Timeout.getMilliSecond(0));
+            dhtAction.getPeers(HexUtil.decode("25A10C0D410CB98352A8256219256FB31989B2EC"), address, Timeout.getMilliSecond(0)).get();
         } catch (Exception e) {
             e.printStackTrace();
         }
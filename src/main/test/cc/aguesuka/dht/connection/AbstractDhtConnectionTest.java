@@ -0,0 +1,114 @@
+package cc.aguesuka.dht.connection;
+
+import cc.aguesuka.dht.token.KrpcToken;
+import cc.aguesuka.util.bencode.BencodeMap;
+import cc.aguesuka.util.inject.Injector;
+import cc.aguesuka.util.stop.Timeout;
+import cc.aguesuka.util.stop.WheelTimer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author :yangmingyuxing
+ * 2026/10/19 03:30
+ */
+public class AbstractDhtConnectionTest {
+
+    @Test
+    public void timeoutOffTimerThread() throws Exception {
+        try (Injector injector = new Injector().addProperties("config.properties").addClass(WheelTimer.class).build()) {
+            WheelTimer timer = injector.instanceByClass(WheelTimer.class);
+            SilentConnection connection = new SilentConnection(timer);
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", 1);
+            AtomicReference<Thread> thread = new AtomicReference<>();
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            CountDownLatch release = new CountDownLatch(1);
+            connection.sendAsync(address, new BencodeMap(), Timeout.getMilliSecond(50)).whenComplete((r, e) -> {
+                thread.set(Thread.currentThread());
+                error.set(e);
+                // 阻塞的后续操作不能影响定时器
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            CountDownLatch ticked = new CountDownLatch(1);
+            timer.schedule(ticked::countDown, 200, TimeUnit.MILLISECONDS);
+            try {
+                Assert.assertTrue(ticked.await(2, TimeUnit.SECONDS));
+                Assert.assertNotNull(thread.get());
+                Assert.assertFalse("wheel.timer".equals(thread.get().getName()));
+                Assert.assertTrue(error.get() instanceof SocketTimeoutException);
+            } finally {
+                release.countDown();
+                connection.close();
+            }
+        }
+    }
+
+    @Test
+    public void reuseMessage() throws Exception {
+        try (Injector injector = new Injector().addProperties("config.properties").addClass(WheelTimer.class).build()) {
+            SilentConnection connection = new SilentConnection(injector.instanceByClass(WheelTimer.class));
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", 1);
+            BencodeMap message = new BencodeMap();
+            message.putByteArray(KrpcToken.Y, KrpcToken.QUERY_TYPE);
+            connection.sendAsync(address, message, Timeout.getMilliSecond(1000));
+            connection.sendAsync(address, message, Timeout.getMilliSecond(1000));
+            connection.close();
+            // 参数不被修改,每次发送的事务id不同
+            Assert.assertFalse(message.containsKey(KrpcToken.T));
+            Assert.assertEquals(2, connection.sent.size());
+            byte[] first = connection.sent.get(0).getByteArray(KrpcToken.T);
+            byte[] second = connection.sent.get(1).getByteArray(KrpcToken.T);
+            Assert.assertFalse(Arrays.equals(first, second));
+            Assert.assertArrayEquals(KrpcToken.QUERY_TYPE, connection.sent.get(1).getByteArray(KrpcToken.Y));
+        }
+    }
+
+    /**
+     * 只发送不接收的连接,所有请求都会超时
+     */
+    private static class SilentConnection extends AbstractDhtConnection {
+        private final WheelTimer timer;
+        private final List<BencodeMap> sent = new CopyOnWriteArrayList<>();
+
+        private SilentConnection(WheelTimer timer) {
+            this.timer = timer;
+        }
+
+        @Override
+        DhtHandler getHandler() {
+            return null;
+        }
+
+        @Override
+        WheelTimer getTimer() {
+            return timer;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void send(InetSocketAddress address, BencodeMap message) {
+            sent.add(message);
+        }
+
+        @Override
+        public void close() {
+            closeTransactions();
+        }
+    }
+}
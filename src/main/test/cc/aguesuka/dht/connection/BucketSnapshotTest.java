@@ -0,0 +1,55 @@
+package cc.aguesuka.dht.connection;
+
+import cc.aguesuka.util.inject.Injector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * @author :yangmingyuxing
+ * 2026/10/19 02:40
+ */
+public class BucketSnapshotTest {
+    private static final long MINUTE = 60 * 1000;
+
+    /**
+     * 不使用配置的快照文件,只读写测试的临时文件
+     */
+    private static Injector injector() {
+        return new Injector().addProperties("config.properties").setProperty("bucket.snapshot.file", "")
+                .addClass(Bucket.class, BucketSnapshot.class).build();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void restoreLastTime() throws Exception {
+        Path path = Files.createTempFile("bucket", ".dat");
+        try {
+            NodeId stale;
+            NodeId fresh;
+            try (Injector injector = injector()) {
+                Bucket<InetSocketAddress> bucket = injector.instanceByClass(Bucket.class);
+                stale = bucket.randomId(150);
+                fresh = bucket.randomId(151);
+                bucket.restore(stale, new InetSocketAddress("1.2.3.4", 1), System.currentTimeMillis() - 20 * MINUTE, 0);
+                bucket.update(fresh, new InetSocketAddress("1.2.3.5", 1), true);
+                injector.instanceByClass(BucketSnapshot.class).save(path);
+            }
+            try (Injector injector = injector()) {
+                Bucket<InetSocketAddress> bucket = injector.instanceByClass(Bucket.class);
+                injector.instanceByClass(BucketSnapshot.class).load(path);
+                // 保存时已经很久没有通信的节点恢复后仍然需要确认
+                List<Bucket.Node<InetSocketAddress>> questionable = bucket.getQuestionable(15 * MINUTE, 8);
+                Assert.assertEquals(1, questionable.size());
+                Assert.assertEquals(stale, questionable.get(0).getId());
+                Assert.assertEquals(2, bucket.get(bucket.getSelf(), 8).size());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
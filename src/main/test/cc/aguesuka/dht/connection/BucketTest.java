@@ -0,0 +1,103 @@
+package cc.aguesuka.dht.connection;
+
+import cc.aguesuka.util.inject.Injector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**
+ * @author :yangmingyuxing
+ * 2026/10/18 15:40
+ */
+public class BucketTest {
+
+    private static BigInteger distance(byte[] a, byte[] b) {
+        return new BigInteger(1, a).xor(new BigInteger(1, b));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void get() throws Exception {
+        try (Injector injector = new Injector().addProperties("config.properties").addClass(Bucket.class).build()) {
+            Bucket<Integer> bucket = injector.instanceByClass(Bucket.class);
+            Random random = new Random(0);
+            for (int i = 0; i < 100000; i++) {
+                byte[] id = new byte[NodeId.LENGTH];
+                random.nextBytes(id);
+                bucket.update(NodeId.of(id), i, true);
+            }
+            Assert.assertTrue(bucket.size() <= NodeId.BITS * 8);
+            List<Bucket.Node<Integer>> all = bucket.get(bucket.getSelf(), Integer.MAX_VALUE);
+            Assert.assertEquals(bucket.size(), all.size());
+            for (int i = 0; i < 100; i++) {
+                byte[] target = new byte[NodeId.LENGTH];
+                random.nextBytes(target);
+                List<Bucket.Node<Integer>> expected = all.stream()
+                        .sorted(Comparator.comparing(node -> distance(target, node.getId().getBytes())))
+                        .limit(8).collect(Collectors.toList());
+                Assert.assertEquals(expected, bucket.get(NodeId.of(target), 8));
+            }
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void getSparse() throws Exception {
+        try (Injector injector = new Injector().addProperties("config.properties").addClass(Bucket.class).build()) {
+            Bucket<Integer> bucket = injector.instanceByClass(Bucket.class);
+            // 目标所在的第40个桶只有2个节点,序号更小的桶都是满的
+            for (int i = 0; i < 40; i++) {
+                for (int j = 0; j < bucket.getK(); j++) {
+                    bucket.update(bucket.randomId(i), i * 100 + j, true);
+                }
+            }
+            for (int j = 0; j < 2; j++) {
+                bucket.update(bucket.randomId(40), 4000 + j, true);
+            }
+            List<Bucket.Node<Integer>> all = bucket.getAll();
+            for (int i = 0; i < 100; i++) {
+                byte[] target = bucket.randomId(40).getBytes();
+                List<Bucket.Node<Integer>> expected = all.stream()
+                        .sorted(Comparator.comparing(node -> distance(target, node.getId().getBytes())))
+                        .limit(8).collect(Collectors.toList());
+                Assert.assertEquals(expected, bucket.get(NodeId.of(target), 8));
+            }
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void randomId() throws Exception {
+        try (Injector injector = new Injector().addProperties("config.properties").addClass(Bucket.class).build()) {
+            Bucket<Integer> bucket = injector.instanceByClass(Bucket.class);
+            for (int i = 0; i < NodeId.BITS; i++) {
+                Assert.assertEquals(i, bucket.getSelf().bucketIndex(bucket.randomId(i)));
+            }
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void evict() throws Exception {
+        try (Injector injector = new Injector().addProperties("config.properties").addClass(Bucket.class).build()) {
+            Bucket<Integer> bucket = injector.instanceByClass(Bucket.class);
+            NodeId id = bucket.randomId(100);
+            bucket.update(id, 0, true);
+            Assert.assertTrue(bucket.getQuestionable(Long.MAX_VALUE, 8).isEmpty());
+            bucket.update(id, 0, false);
+            Assert.assertEquals(1, bucket.getQuestionable(Long.MAX_VALUE, 8).size());
+            for (int i = 0; i < 10; i++) {
+                bucket.update(id, 0, false);
+            }
+            Assert.assertEquals(0, bucket.evict());
+            bucket.restore(id, 0, 0, 100);
+            Assert.assertEquals(1, bucket.evict());
+            Assert.assertEquals(0, bucket.size());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package cc.aguesuka.dht.connection;
+
+import cc.aguesuka.dht.token.KrpcToken;
+import cc.aguesuka.util.bencode.BencodeMap;
+import cc.aguesuka.util.inject.Injector;
+import cc.aguesuka.util.stop.Timeout;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * @author :yangmingyuxing
+ * 2026/10/19 03:50
+ */
+public class DhtHandlerTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void findNodeSkipIpv6() throws Exception {
+        try (Injector injector = new Injector().addProperties("config.properties")
+                .addClass(Bucket.class, DhtHandler.class, RecordingConnection.class).build()) {
+            Bucket<InetSocketAddress> bucket = injector.instanceByClass(Bucket.class);
+            NodeId target = bucket.randomId(150);
+            bucket.update(bucket.randomId(150), new InetSocketAddress("1.2.3.4", 1), true);
+            bucket.update(bucket.randomId(150), new InetSocketAddress("::1", 2), true);
+            bucket.update(bucket.randomId(151), new InetSocketAddress("1.2.3.5", 3), true);
+
+            BencodeMap a = new BencodeMap();
+            a.putByteArray(KrpcToken.ID, bucket.randomId(100).getBytes());
+            a.putByteArray(KrpcToken.TARGET, target.getBytes());
+            BencodeMap query = new BencodeMap();
+            query.putByteArray(KrpcToken.T, KrpcToken.T_VALUE.getBytes(StandardCharsets.US_ASCII));
+            query.putByteArray(KrpcToken.Y, KrpcToken.QUERY_TYPE);
+            query.putByteArray(KrpcToken.QUERY, KrpcToken.FIND_NODE.getBytes(StandardCharsets.US_ASCII));
+            query.put(KrpcToken.A, a);
+            injector.instanceByClass(DhtHandler.class).onRequest(new InetSocketAddress("1.2.3.6", 4), query);
+
+            // ipv6节点不能写入nodes,只返回两个ipv4节点
+            List<BencodeMap> sent = injector.instanceByClass(RecordingConnection.class).sent;
+            Assert.assertEquals(1, sent.size());
+            byte[] nodes = sent.get(0).getBencodeMap(KrpcToken.R).getByteArray(KrpcToken.NODES);
+            Assert.assertEquals(2 * (NodeId.LENGTH + 6), nodes.length);
+        }
+    }
+
+    /**
+     * 记录发送的消息
+     */
+    private static class RecordingConnection implements DhtConnection<InetSocketAddress, BencodeMap> {
+        private final List<BencodeMap> sent = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void send(InetSocketAddress address, BencodeMap message) {
+            sent.add(message);
+        }
+
+        @Override
+        public CompletableFuture<BencodeMap> sendAsync(InetSocketAddress address, BencodeMap message, Timeout timeout) {
+            send(address, message);
+            return new CompletableFuture<>();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
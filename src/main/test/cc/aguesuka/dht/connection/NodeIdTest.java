@@ -0,0 +1,46 @@
+package cc.aguesuka.dht.connection;
+
+import cc.aguesuka.util.ByteUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * @author :yangmingyuxing
+ * 2026/10/18 16:30
+ */
+public class NodeIdTest {
+
+    private static byte[] randomId(Random random) {
+        byte[] id = new byte[NodeId.LENGTH];
+        random.nextBytes(id);
+        // 让部分id有相同的前缀
+        if (random.nextBoolean()) {
+            id[0] = 0;
+        }
+        return id;
+    }
+
+    @Test
+    public void test() {
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            byte[] a = randomId(random);
+            byte[] b = randomId(random);
+            byte[] t = randomId(random);
+            NodeId idA = NodeId.of(a);
+            NodeId idB = NodeId.of(b);
+            NodeId idT = NodeId.of(t);
+            Assert.assertArrayEquals(a, idA.getBytes());
+            Assert.assertEquals(Integer.signum(ByteUtil.compareBytes(a, b)), Integer.signum(idA.compareTo(idB)));
+            BigInteger distanceA = new BigInteger(1, a).xor(new BigInteger(1, t));
+            BigInteger distanceB = new BigInteger(1, b).xor(new BigInteger(1, t));
+            Assert.assertEquals(Integer.signum(distanceA.compareTo(distanceB)), Integer.signum(idT.compareDistance(idA, idB)));
+            Assert.assertEquals(distanceA.bitLength() - 1, idT.bucketIndex(idA));
+            Assert.assertEquals(idA.xor(idT), NodeId.of(idT.xor(idA).getBytes()));
+        }
+        Assert.assertEquals(-1, NodeId.of(new byte[NodeId.LENGTH]).bucketIndex(NodeId.of(new byte[NodeId.LENGTH])));
+    }
+}
@@ -1,9 +1,11 @@
 package cc.aguesuka.downloader;
 
 import cc.aguesuka.downloader.impl.DoMetaDataDownLoader;
+import cc.aguesuka.util.DeadAddressCache;
 import cc.aguesuka.util.HexUtil;
 import cc.aguesuka.util.inject.Injector;
 import cc.aguesuka.util.log.LogSetting;
+import cc.aguesuka.util.stop.WheelTimer;
 import org.junit.Test;
 
 import java.io.IOException;
@@ -20,7 +22,7 @@ public class DoMetaDataDownLoaderTest {
     @Test
     public void downloadMataData() throws IOException {
         Injector injector = new Injector();
-        injector.addClass(LogSetting.class, DoMetaDataDownLoader.class);
+        injector.addClass(LogSetting.class, WheelTimer.class, DeadAddressCache.class, DoMetaDataDownLoader.class);
         injector.addProperties("config.properties");
         injector.build();
         DoMetaDataDownLoader doMetaDataDownLoad = injector.instanceByClass(DoMetaDataDownLoader.class);
@@ -0,0 +1,356 @@
+package cc.aguesuka.downloader;
+
+import cc.aguesuka.downloader.impl.DoMetaDataDownLoader;
+import cc.aguesuka.downloader.impl.NioMetaDataDownLoader;
+import cc.aguesuka.util.AddressUtil;
+import cc.aguesuka.util.DeadAddressCache;
+import cc.aguesuka.util.bencode.Bencode;
+import cc.aguesuka.util.bencode.BencodeMap;
+import cc.aguesuka.util.inject.Injector;
+import cc.aguesuka.util.stop.ShutdownException;
+import cc.aguesuka.util.stop.ShutdownFlag;
+import cc.aguesuka.util.stop.WheelTimer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cc.aguesuka.downloader.impl.MetadataDigest.PIECE_LENGTH;
+
+/**
+ * 用本地的假节点测试非阻塞下载
+ *
+ * @author :yangmingyuxing
+ * 2026/10/18 22:50
+ */
+public class NioMetaDataDownLoaderTest {
+    private static Injector injector() {
+        return new Injector().addProperties("config.properties")
+                .addClass(WheelTimer.class, DeadAddressCache.class, NioMetaDataDownLoader.class,
+                        DoMetaDataDownLoader.class).build();
+    }
+
+    /**
+     * 启动一个只服务一次的假节点
+     *
+     * @param infoHash 种子hash
+     * @param metadata 种子信息
+     * @param reject   是否拒绝所有请求
+     * @param batch    收到多少个请求后再倒序回复,大于1时要求对方一次发送多个请求
+     * @return 监听的端口
+     */
+    private static int fakePeer(byte[] infoHash, byte[] metadata, boolean reject, int batch) throws IOException {
+        return fakePeer(infoHash, metadata, reject, batch, Integer.MAX_VALUE, new AtomicInteger(), null, 0);
+    }
+
+    /**
+     * 启动一个只服务一次的假节点
+     *
+     * @param limit  回复多少块后断开连接
+     * @param served 回复的块数
+     * @param pex    扩展握手后发送的ut_pex消息,为null时不发送
+     * @param delay  收到一批请求后等待多少毫秒再回复
+     * @return 监听的端口
+     */
+    private static int fakePeer(byte[] infoHash, byte[] metadata, boolean reject, int batch, int limit,
+                                AtomicInteger served, byte[] pex, int delay) throws IOException {
+        ServerSocket server = new ServerSocket(0);
+        Thread thread = new Thread(() -> {
+            try (ServerSocket serverSocket = server; Socket socket = serverSocket.accept()) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                byte[] handshake = new byte[68];
+                in.readFully(handshake);
+                System.arraycopy(infoHash, 0, handshake, 28, 20);
+                // 延迟回复,使同时开始的连接都加入同一个下载
+                Thread.sleep(100);
+                out.write(handshake);
+                BencodeMap m = new BencodeMap();
+                m.putLong("ut_metadata", 3);
+                BencodeMap extended = new BencodeMap();
+                extended.put("m", m);
+                extended.putLong("metadata_size", metadata.length);
+                writeExtended(out, 0, extended.toBencodeBytes(), new byte[0]);
+                if (pex != null) {
+                    // 本地ut_pex编号为2
+                    writeExtended(out, 2, pex, new byte[0]);
+                }
+                Deque<Integer> pieces = new ArrayDeque<>();
+                for (; ; ) {
+                    byte[] message = new byte[in.readInt()];
+                    in.readFully(message);
+                    if (message.length < 2 || message[0] != 20 || message[1] != 3) {
+                        continue;
+                    }
+                    BencodeMap request = Bencode.parse(ByteBuffer.wrap(message, 2, message.length - 2));
+                    pieces.push((int) request.getLong("piece"));
+                    if (pieces.size() < batch) {
+                        continue;
+                    }
+                    Thread.sleep(delay);
+                    while (!pieces.isEmpty()) {
+                        if (served.get() >= limit) {
+                            return;
+                        }
+                        reply(out, metadata, reject, pieces.pop());
+                        served.incrementAndGet();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // 连接被关闭
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return server.getLocalPort();
+    }
+
+    private static void reply(DataOutputStream out, byte[] metadata, boolean reject, int piece) throws IOException {
+        BencodeMap response = new BencodeMap();
+        response.putLong("msg_type", reject ? 2 : 1);
+        response.putLong("piece", piece);
+        int offset = piece * PIECE_LENGTH;
+        byte[] data = reject ? new byte[0] :
+                Arrays.copyOfRange(metadata, offset, Math.min(metadata.length, offset + PIECE_LENGTH));
+        // 本地ut_metadata编号为1
+        writeExtended(out, 1, response.toBencodeBytes(), data);
+    }
+
+    private static void writeExtended(DataOutputStream out, int id, byte[] message, byte[] data) throws IOException {
+        out.writeInt(message.length + data.length + 2);
+        out.write(20);
+        out.write(id);
+        out.write(message);
+        out.write(data);
+        out.flush();
+    }
+
+    @Test
+    public void downloadMataData() throws Exception {
+        byte[] metadata = new byte[PIECE_LENGTH * 2 + 1000];
+        new Random(0).nextBytes(metadata);
+        byte[] infoHash = sha1(metadata);
+        try (Injector injector = injector()) {
+            NioMetaDataDownLoader downLoader = injector.instanceByClass(NioMetaDataDownLoader.class);
+            int port = fakePeer(infoHash, metadata, false, 1);
+            byte[] result = downLoader.downloadMataData(infoHash, new InetSocketAddress("127.0.0.1", port));
+            Assert.assertArrayEquals(metadata, result);
+        }
+    }
+
+    @Test
+    public void pipeline() throws Exception {
+        byte[] metadata = new byte[PIECE_LENGTH * 4 + 1];
+        new Random(1).nextBytes(metadata);
+        byte[] infoHash = sha1(metadata);
+        try (Injector injector = injector()) {
+            // 假节点收到全部5个请求后才倒序回复,逐块请求会超时
+            for (Class<? extends IMetaDataDownloader> type :
+                    Arrays.asList(NioMetaDataDownLoader.class, DoMetaDataDownLoader.class)) {
+                int port = fakePeer(infoHash, metadata, false, 5);
+                byte[] result = injector.instanceByClass(type)
+                        .downloadMataData(infoHash, new InetSocketAddress("127.0.0.1", port));
+                Assert.assertArrayEquals(metadata, result);
+            }
+        }
+    }
+
+    @Test
+    public void swarm() throws Exception {
+        byte[] metadata = new byte[PIECE_LENGTH * 4 + 1];
+        new Random(2).nextBytes(metadata);
+        byte[] infoHash = sha1(metadata);
+        try (Injector injector = injector()) {
+            NioMetaDataDownLoader downLoader = injector.instanceByClass(NioMetaDataDownLoader.class);
+            // 节点a回复2块后断开,剩下的块由节点b下载
+            AtomicInteger served = new AtomicInteger();
+            int a = fakePeer(infoHash, metadata, false, 1, 2, served, null, 0);
+            int b = fakePeer(infoHash, metadata, false, 1, Integer.MAX_VALUE, served, null, 0);
+            ShutdownFlag cancelFlag = new ShutdownFlag();
+            downLoader.downloadAsync(infoHash, new InetSocketAddress("127.0.0.1", a), cancelFlag, null, null);
+            byte[] result = downLoader.downloadAsync(infoHash, new InetSocketAddress("127.0.0.1", b), cancelFlag, null, null)
+                    .get(10, TimeUnit.SECONDS);
+            Assert.assertArrayEquals(metadata, result);
+            // 两个节点共享进度,每块只下载一次
+            Assert.assertEquals(5, served.get());
+        }
+    }
+
+    @Test
+    public void poisoned() throws Exception {
+        byte[] metadata = new byte[PIECE_LENGTH + 1];
+        byte[] infoHash = sha1(metadata);
+        metadata[PIECE_LENGTH] = 1;
+        try (Injector injector = injector()) {
+            // 种子信息和info hash不一致,下载失败
+            for (Class<? extends IMetaDataDownloader> type :
+                    Arrays.asList(NioMetaDataDownLoader.class, DoMetaDataDownLoader.class)) {
+                InetSocketAddress address = new InetSocketAddress("127.0.0.1", fakePeer(infoHash, metadata, false, 1));
+                try {
+                    injector.instanceByClass(type).downloadMataData(infoHash, address);
+                    Assert.fail();
+                } catch (IOException e) {
+                    // 校验失败
+                }
+            }
+        }
+    }
+
+    @Test
+    public void liar() throws Exception {
+        byte[] metadata = new byte[PIECE_LENGTH * 4 + 1];
+        new Random(5).nextBytes(metadata);
+        byte[] infoHash = sha1(metadata);
+        byte[] poisoned = metadata.clone();
+        poisoned[PIECE_LENGTH * 2] ^= 1;
+        try (Injector injector = injector()) {
+            NioMetaDataDownLoader downLoader = injector.instanceByClass(NioMetaDataDownLoader.class);
+            DeadAddressCache deadAddressCache = injector.instanceByClass(DeadAddressCache.class);
+            // 说谎的节点先加入,收到全部请求后等待另一个节点加入,回复第4,3,2块(错误)后断开,
+            // 剩下的块由诚实的节点下载,校验失败时无法确定是哪个节点
+            int liarPort = fakePeer(infoHash, poisoned, false, 5, 3, new AtomicInteger(), null, 300);
+            InetSocketAddress honest = new InetSocketAddress("127.0.0.1", fakePeer(infoHash, metadata, false, 1));
+            ShutdownFlag cancelFlag = new ShutdownFlag();
+            downLoader.downloadAsync(infoHash, new InetSocketAddress("127.0.0.1", liarPort), cancelFlag, null, null);
+            Thread.sleep(50);
+            byte[] result = downLoader.downloadAsync(infoHash, honest, cancelFlag, null, null)
+                    .get(10, TimeUnit.SECONDS);
+            Assert.assertArrayEquals(metadata, result);
+            Assert.assertFalse(deadAddressCache.isPeerDead(honest));
+        }
+    }
+
+    @Test
+    public void race() throws Exception {
+        byte[] metadata = new byte[PIECE_LENGTH + 1];
+        new Random(3).nextBytes(metadata);
+        byte[] infoHash = sha1(metadata);
+        try (Injector injector = injector(); ServerSocket silent = new ServerSocket(0)) {
+            NioMetaDataDownLoader downLoader = injector.instanceByClass(NioMetaDataDownLoader.class);
+            // 第一个节点接受连接但不握手,第二个节点拒绝连接,第三个节点正常
+            ServerSocket closed = new ServerSocket(0);
+            closed.close();
+            InetSocketAddress silentAddress = new InetSocketAddress("127.0.0.1", silent.getLocalPort());
+            List<InetSocketAddress> addresses = Arrays.asList(silentAddress,
+                    new InetSocketAddress("127.0.0.1", closed.getLocalPort()),
+                    new InetSocketAddress("127.0.0.1", fakePeer(infoHash, metadata, false, 1)));
+            byte[] result = downLoader.raceAsync(infoHash, addresses, new ShutdownFlag(), null, null)
+                    .get(5, TimeUnit.SECONDS);
+            Assert.assertArrayEquals(metadata, result);
+            // 没有握手的连接被关闭,不记为失败
+            Assert.assertFalse(injector.instanceByClass(DeadAddressCache.class).isPeerDead(silentAddress));
+        }
+    }
+
+    @Test
+    public void peerExchange() throws Exception {
+        byte[] metadata = new byte[PIECE_LENGTH + 1];
+        new Random(4).nextBytes(metadata);
+        byte[] infoHash = sha1(metadata);
+        // 1.2.3.4:6881 和端口为0的 5.6.7.8:0
+        BencodeMap pex = new BencodeMap();
+        pex.putByteArray("added", new byte[]{1, 2, 3, 4, 0x1a, (byte) 0xe1, 5, 6, 7, 8, 0, 0});
+        try (Injector injector = injector()) {
+            for (Class<? extends IMetaDataDownloader> type :
+                    Arrays.asList(NioMetaDataDownLoader.class, DoMetaDataDownLoader.class)) {
+                int port = fakePeer(infoHash, metadata, false, 1, Integer.MAX_VALUE, new AtomicInteger(),
+                        pex.toBencodeBytes(), 0);
+                List<Long> peers = new CopyOnWriteArrayList<>();
+                byte[] result = injector.instanceByClass(type).downloadMataData(infoHash,
+                        new InetSocketAddress("127.0.0.1", port), new ShutdownFlag(), address -> {
+                            for (long addr : address) {
+                                peers.add(addr);
+                            }
+                        });
+                Assert.assertArrayEquals(metadata, result);
+                Assert.assertEquals(Collections.singletonList(
+                        AddressUtil.pack(new InetSocketAddress("1.2.3.4", 6881))), peers);
+            }
+        }
+    }
+
+    @Test
+    public void malformedPeerExchange() throws Exception {
+        byte[] metadata = new byte[PIECE_LENGTH + 1];
+        new Random(6).nextBytes(metadata);
+        byte[] infoHash = sha1(metadata);
+        // added不是字符串,以及不完整的bencode
+        List<byte[]> messages = Arrays.asList("d5:addedi1ee".getBytes(StandardCharsets.US_ASCII),
+                "d5:added12:ab".getBytes(StandardCharsets.US_ASCII));
+        try (Injector injector = injector()) {
+            for (Class<? extends IMetaDataDownloader> type :
+                    Arrays.asList(NioMetaDataDownLoader.class, DoMetaDataDownLoader.class)) {
+                for (byte[] pex : messages) {
+                    InetSocketAddress address = new InetSocketAddress("127.0.0.1",
+                            fakePeer(infoHash, metadata, false, 1, Integer.MAX_VALUE, new AtomicInteger(), pex, 0));
+                    List<long[]> peers = new CopyOnWriteArrayList<>();
+                    // 错误的ut_pex消息被忽略,不影响下载
+                    byte[] result = injector.instanceByClass(type)
+                            .downloadMataData(infoHash, address, new ShutdownFlag(), peers::add);
+                    Assert.assertArrayEquals(metadata, result);
+                    Assert.assertTrue(peers.isEmpty());
+                    Assert.assertFalse(injector.instanceByClass(DeadAddressCache.class).isPeerDead(address));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reject() throws Exception {
+        byte[] infoHash = new byte[20];
+        try (Injector injector = injector()) {
+            NioMetaDataDownLoader downLoader = injector.instanceByClass(NioMetaDataDownLoader.class);
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", fakePeer(infoHash, new byte[100], true, 1));
+            try {
+                downLoader.downloadMataData(infoHash, address);
+                Assert.fail();
+            } catch (IOException e) {
+                // 对方拒绝
+            }
+            Assert.assertTrue(injector.instanceByClass(DeadAddressCache.class).isPeerDead(address));
+        }
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        try (Injector injector = injector(); ServerSocket server = new ServerSocket(0)) {
+            NioMetaDataDownLoader downLoader = injector.instanceByClass(NioMetaDataDownLoader.class);
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+            ShutdownFlag cancelFlag = new ShutdownFlag();
+            // 对方接受连接但是不回复,取消后应立即结束
+            CompletableFuture<byte[]> future = downLoader.downloadAsync(new byte[20], address, cancelFlag, null, null);
+            cancelFlag.shutdown();
+            try {
+                future.get(1, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof ShutdownException);
+            }
+            Assert.assertFalse(injector.instanceByClass(DeadAddressCache.class).isPeerDead(address));
+        }
+    }
+
+    private static byte[] sha1(byte[] data) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-1").digest(data);
+    }
+}
@@ -0,0 +1,111 @@
+package cc.aguesuka.downloader.impl;
+
+import cc.aguesuka.downloader.IDownloadInfoHash;
+import cc.aguesuka.util.inject.Injector;
+import cc.aguesuka.util.stop.WheelTimer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author :yangmingyuxing
+ * 2026/10/18 20:10
+ */
+public class BatchDownloaderTest {
+
+    @Test
+    public void parseInfoHash() {
+        String hash = "5A1A7D6EEB329F9833FFD8CF6003547478BF4795";
+        Assert.assertEquals(hash, BatchDownloader.parseInfoHash(hash.toLowerCase()));
+        Assert.assertEquals(hash, BatchDownloader.parseInfoHash(" " + hash + " "));
+        Assert.assertEquals(hash, BatchDownloader.parseInfoHash("magnet:?xt=urn:btih:" + hash + "&dn=test"));
+        Assert.assertNull(BatchDownloader.parseInfoHash(hash.substring(1)));
+        Assert.assertNull(BatchDownloader.parseInfoHash(hash.replace('A', 'G')));
+    }
+
+    @Test
+    public void download() throws Exception {
+        Path result = Files.createTempFile("batch", ".txt");
+        try (Injector injector = new Injector().addProperties("config.properties")
+                .setProperty("batch.concurrency", "3").setProperty("batch.resultFile", result.toString())
+                .addClass(WheelTimer.class, BatchDownloader.class, StubDownloadInfoHash.class).build()) {
+            StringBuilder input = new StringBuilder("# 注释\n\nnot a hash\n");
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                String infoHash = String.format("%02X", i) + "1A7D6EEB329F9833FFD8CF6003547478BF4795";
+                input.append(i % 5 == 0 ? "magnet:?xt=urn:btih:" + infoHash.toLowerCase() : infoHash).append('\n');
+                expected.add(infoHash + (i % 3 == 0 ? "\tfail\tno peer" : "\tok"));
+            }
+            injector.instanceByClass(BatchDownloader.class)
+                    .download(new BufferedReader(new StringReader(input.toString())));
+
+            // download返回时所有结果都已经写入
+            List<String> lines = Files.readAllLines(result, StandardCharsets.UTF_8);
+            Collections.sort(lines);
+            Collections.sort(expected);
+            Assert.assertEquals(expected, lines);
+            StubDownloadInfoHash stub = injector.instanceByClass(StubDownloadInfoHash.class);
+            Assert.assertEquals(20, stub.started.get());
+            Assert.assertEquals(0, stub.running.get());
+            Assert.assertTrue(stub.maxRunning.get() <= 3);
+            Assert.assertTrue(stub.maxRunning.get() > 1);
+        } finally {
+            Files.delete(result);
+        }
+    }
+
+    /**
+     * 在另一个线程中结束下载,第一个字节是3的倍数时失败,记录同时下载的数量
+     */
+    private static class StubDownloadInfoHash implements IDownloadInfoHash, AutoCloseable {
+        private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+        private final AtomicInteger started = new AtomicInteger();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxRunning = new AtomicInteger();
+
+        @Override
+        public void download(byte[] infoHash) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> downloadAsync(byte[] infoHash) {
+            started.incrementAndGet();
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            int first = infoHash[0];
+            executor.schedule(() -> {
+                running.decrementAndGet();
+                if (first % 3 != 0) {
+                    future.complete(null);
+                } else if (first % 2 == 0) {
+                    future.completeExceptionally(new IOException("no peer"));
+                } else {
+                    // 包装过的异常也输出原因
+                    future.completeExceptionally(new CompletionException(new IOException("no peer")));
+                }
+            }, 10 + first % 4 * 10, TimeUnit.MILLISECONDS);
+            return future;
+        }
+
+        @Override
+        public void close() {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package cc.aguesuka.downloader.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * @author :yangmingyuxing
+ * 2026/10/18 23:40
+ */
+public class MetadataDigestTest {
+
+    @Test
+    public void verify() throws Exception {
+        byte[] metadata = new byte[MetadataDigest.PIECE_LENGTH * 3 + 100];
+        new Random(0).nextBytes(metadata);
+        byte[] infoHash = MessageDigest.getInstance("SHA-1").digest(metadata);
+        Assert.assertTrue(MetadataDigest.matches(infoHash, metadata));
+
+        // 乱序收到
+        boolean[] received = new boolean[4];
+        MetadataDigest digest = MetadataDigest.ofThread(metadata);
+        for (int piece : new int[]{2, 0, 3, 1}) {
+            received[piece] = true;
+            digest.update(received);
+        }
+        Assert.assertTrue(digest.verify(infoHash));
+
+        // 未收到所有块
+        digest = MetadataDigest.ofThread(metadata);
+        received = new boolean[]{true, true, false, true};
+        digest.update(received);
+        Assert.assertFalse(digest.verify(infoHash));
+
+        // 数据被修改
+        metadata[MetadataDigest.PIECE_LENGTH * 3] ^= 1;
+        digest = MetadataDigest.ofThread(metadata);
+        digest.update(new boolean[]{true, true, true, true});
+        Assert.assertFalse(digest.verify(infoHash));
+        Assert.assertFalse(MetadataDigest.matches(infoHash, metadata));
+    }
+}
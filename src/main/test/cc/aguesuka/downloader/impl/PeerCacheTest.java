@@ -0,0 +1,122 @@
+package cc.aguesuka.downloader.impl;
+
+import cc.aguesuka.dht.connection.NodeId;
+import cc.aguesuka.util.AddressUtil;
+import cc.aguesuka.util.inject.Injector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * @author :yangmingyuxing
+ * 2026/10/19 03:10
+ */
+public class PeerCacheTest {
+    private static final NodeId A = infoHash(1);
+    private static final NodeId B = infoHash(2);
+    private static final NodeId C = infoHash(3);
+
+    private static NodeId infoHash(int value) {
+        byte[] bytes = new byte[NodeId.LENGTH];
+        bytes[0] = (byte) value;
+        return NodeId.of(bytes);
+    }
+
+    private static long peer(int port) {
+        return AddressUtil.pack(new InetSocketAddress("1.2.3.4", port));
+    }
+
+    /**
+     * 默认不读写文件,需要时再覆盖
+     */
+    private static Injector injector(String... properties) {
+        Injector injector = new Injector().addProperties("config.properties").setProperty("peerCache.file", "");
+        for (int i = 0; i < properties.length; i += 2) {
+            injector.setProperty(properties[i], properties[i + 1]);
+        }
+        return injector.addClass(PeerCache.class).build();
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        Path dir = Files.createTempDirectory("peerCache");
+        Path file = dir.resolve("peers.dat");
+        try {
+            try (Injector injector = injector("peerCache.file", file.toString())) {
+                PeerCache cache = injector.instanceByClass(PeerCache.class);
+                cache.addPeers(A, new long[]{peer(1), peer(2)});
+                cache.addPeers(B, new long[]{peer(3)});
+            }
+            Assert.assertTrue(Files.exists(file));
+            try (Injector injector = injector("peerCache.file", file.toString())) {
+                PeerCache cache = injector.instanceByClass(PeerCache.class);
+                Assert.assertArrayEquals(new long[]{peer(1), peer(2)}, cache.get(A));
+                Assert.assertArrayEquals(new long[]{peer(3)}, cache.get(B));
+                Assert.assertNull(cache.get(C));
+                // 读回的记录保留原来的更新时间
+                Assert.assertFalse(cache.needRefresh(A));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void expire() throws Exception {
+        try (Injector injector = injector("peerCache.ttl", "200", "peerCache.refresh", "100")) {
+            PeerCache cache = injector.instanceByClass(PeerCache.class);
+            Assert.assertTrue(cache.needRefresh(A));
+            cache.addPeers(A, new long[]{peer(1)});
+            Assert.assertFalse(cache.needRefresh(A));
+
+            // 超过刷新时间仍然可以使用,同时需要重新查询
+            Thread.sleep(150);
+            Assert.assertTrue(cache.needRefresh(A));
+            Assert.assertNotNull(cache.get(A));
+
+            // 超过ttl不再使用
+            Thread.sleep(100);
+            Assert.assertNull(cache.get(A));
+            Assert.assertTrue(cache.needRefresh(A));
+
+            // 重新添加后更新时间
+            cache.addPeers(A, new long[]{peer(2)});
+            Assert.assertArrayEquals(new long[]{peer(2)}, cache.get(A));
+            Assert.assertFalse(cache.needRefresh(A));
+        }
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        try (Injector injector = injector("peerCache.size", "2")) {
+            PeerCache cache = injector.instanceByClass(PeerCache.class);
+            cache.addPeers(A, new long[]{peer(1)});
+            cache.addPeers(B, new long[]{peer(2)});
+            // 访问A之后B是最久未使用的
+            Assert.assertNotNull(cache.get(A));
+            cache.addPeers(C, new long[]{peer(3)});
+            Assert.assertNull(cache.get(B));
+            Assert.assertNotNull(cache.get(A));
+            Assert.assertNotNull(cache.get(C));
+            // 空数组不添加记录
+            cache.addPeers(B, new long[0]);
+            Assert.assertNull(cache.get(B));
+            Assert.assertNotNull(cache.get(A));
+        }
+    }
+
+    @Test
+    public void maxPeers() throws Exception {
+        try (Injector injector = injector("peerCache.maxPeers", "3")) {
+            PeerCache cache = injector.instanceByClass(PeerCache.class);
+            cache.addPeers(A, new long[]{peer(1), peer(2), peer(1)});
+            Assert.assertArrayEquals(new long[]{peer(1), peer(2)}, cache.get(A));
+            cache.addPeers(A, new long[]{peer(3), peer(4), peer(5)});
+            Assert.assertArrayEquals(new long[]{peer(1), peer(2), peer(3)}, cache.get(A));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package cc.aguesuka.downloader.utp;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 用本地的uTP回显节点测试,回显的数据两个包一组倒序发送,测试乱序和选择确认
+ *
+ * @author :yangmingyuxing
+ * 2026/10/19 01:30
+ */
+public class UtpSocketTest {
+    private static final int ECHO_PAYLOAD = 1000;
+
+    /**
+     * 启动一个只服务一次的回显节点
+     *
+     * @return 监听的地址
+     */
+    private static InetSocketAddress echoPeer() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        Thread thread = new Thread(() -> {
+            try (DatagramChannel server = channel) {
+                ByteBuffer buffer = ByteBuffer.allocate(65536);
+                int connectionId = -1;
+                int seq = 100;
+                int ack = 0;
+                for (; ; ) {
+                    buffer.clear();
+                    SocketAddress from = server.receive(buffer);
+                    buffer.flip();
+                    UtpPacket packet = UtpPacket.read(buffer);
+                    int delay = (int) (System.nanoTime() / 1000) - packet.timestamp;
+                    if (packet.type == UtpPacket.ST_SYN) {
+                        connectionId = packet.connectionId;
+                        ack = packet.seqNr;
+                        send(server, from, UtpPacket.ST_STATE, connectionId, seq, ack, delay, null);
+                        continue;
+                    }
+                    if (packet.type == UtpPacket.ST_FIN || packet.type == UtpPacket.ST_RESET) {
+                        return;
+                    }
+                    if (packet.type != UtpPacket.ST_DATA || packet.seqNr != ((ack + 1) & UtpPacket.SEQ_MASK)) {
+                        continue;
+                    }
+                    ack = packet.seqNr;
+                    send(server, from, UtpPacket.ST_STATE, connectionId, seq, ack, delay, null);
+                    List<ByteBuffer> echo = new ArrayList<>();
+                    while (buffer.hasRemaining()) {
+                        ByteBuffer payload = buffer.slice();
+                        payload.limit(Math.min(ECHO_PAYLOAD, buffer.remaining()));
+                        buffer.position(buffer.position() + payload.remaining());
+                        echo.add(payload);
+                    }
+                    for (int i = 0; i < echo.size(); i += 2) {
+                        if (i + 1 < echo.size()) {
+                            send(server, from, UtpPacket.ST_DATA, connectionId, seq + i + 1, ack, delay, echo.get(i + 1));
+                        }
+                        send(server, from, UtpPacket.ST_DATA, connectionId, seq + i, ack, delay, echo.get(i));
+                    }
+                    seq += echo.size();
+                }
+            } catch (IOException e) {
+                // 测试结束
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    private static void send(DatagramChannel channel, SocketAddress to, int type, int connectionId, int seq, int ack,
+                             int delay, ByteBuffer payload) throws IOException {
+        UtpPacket packet = new UtpPacket();
+        packet.type = type;
+        packet.connectionId = connectionId;
+        packet.timestamp = (int) (System.nanoTime() / 1000);
+        packet.timestampDiff = delay;
+        packet.windowSize = 1024 * 1024;
+        packet.seqNr = seq & UtpPacket.SEQ_MASK;
+        packet.ackNr = ack;
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        packet.write(buffer);
+        if (payload != null) {
+            buffer.put(payload);
+        }
+        buffer.flip();
+        channel.send(buffer, to);
+    }
+
+    @Test
+    public void echo() throws Exception {
+        byte[] data = new byte[100 * 1024];
+        new Random(0).nextBytes(data);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        IOException[] closed = new IOException[1];
+        InetSocketAddress address = echoPeer();
+        try (Selector selector = Selector.open(); UtpMultiplexer multiplexer = new UtpMultiplexer(selector)) {
+            UtpSocket[] socket = new UtpSocket[1];
+            socket[0] = multiplexer.connect(address, new UtpSocket.Listener() {
+                @Override
+                public void onConnected() {
+                    socket[0].write(ByteBuffer.wrap(data));
+                }
+
+                @Override
+                public void onData(ByteBuffer buffer) {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    received.write(bytes, 0, bytes.length);
+                }
+
+                @Override
+                public void onClosed(IOException e) {
+                    closed[0] = e;
+                }
+            });
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (received.size() < data.length && closed[0] == null && System.currentTimeMillis() < deadline) {
+                selector.select(UtpMultiplexer.TICK_INTERVAL);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ((UtpMultiplexer) key.attachment()).onReadable();
+                }
+                selector.selectedKeys().clear();
+                multiplexer.tick();
+            }
+            socket[0].close();
+        }
+        Assert.assertNull(closed[0]);
+        Assert.assertArrayEquals(data, received.toByteArray());
+    }
+
+    @Test
+    public void packet() throws Exception {
+        UtpPacket packet = new UtpPacket();
+        packet.type = UtpPacket.ST_STATE;
+        packet.connectionId = 0xfffe;
+        packet.seqNr = 0xffff;
+        packet.ackNr = 3;
+        packet.selectiveAck = new byte[]{1, 0, 0, (byte) 0x80};
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        packet.write(buffer);
+        buffer.flip();
+        UtpPacket read = UtpPacket.read(buffer);
+        Assert.assertEquals(UtpPacket.ST_STATE, read.type);
+        Assert.assertEquals(0xfffe, read.connectionId);
+        Assert.assertEquals(0xffff, read.seqNr);
+        Assert.assertArrayEquals(packet.selectiveAck, read.selectiveAck);
+        Assert.assertFalse(buffer.hasRemaining());
+        // 序号回绕
+        Assert.assertTrue(UtpPacket.compareSeq(1, 0xffff) > 0);
+        Assert.assertTrue(UtpPacket.compareSeq(0xffff, 1) < 0);
+    }
+}
@@ -1,7 +1,7 @@
 package cc.aguesuka.run;
 
 import cc.aguesuka.downloader.IDownloadInfoHash;
-import cc.aguesuka.downloader.impl.DoMetaDataDownLoader;
+import cc.aguesuka.downloader.IMetaDataDownloader;
 import cc.aguesuka.util.HexUtil;
 import cc.aguesuka.util.inject.Injector;
 import cc.aguesuka.util.inject.annotation.Config;
@@ -17,7 +17,8 @@ public class BeansFactoryTest {
     @Test
     public void createInjector() throws Exception {
         try (Injector injector = BeansFactory.createInjector()) {
-            Assert.assertEquals(injector.instanceByClass(DoMetaDataDownLoader.class).getClass(),DoMetaDataDownLoader.class );
+            Assert.assertEquals(injector.instanceByClass(IMetaDataDownloader.class).getClass(),
+                    BeansFactory.metaDataDownloaderClass(injector.getProperty(BeansFactory.META_DATA_DOWNLOADER_KEY)));
         }
     }
 
@@ -0,0 +1,37 @@
+package cc.aguesuka.util;
+
+import cc.aguesuka.util.inject.Injector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+
+/**
+ * @author :yangmingyuxing
+ * 2026/10/18 21:40
+ */
+public class DeadAddressCacheTest {
+
+    @Test
+    public void mark() throws Exception {
+        try (Injector injector = new Injector().addProperties("config.properties").addClass(DeadAddressCache.class).build()) {
+            DeadAddressCache cache = injector.instanceByClass(DeadAddressCache.class);
+            InetSocketAddress address = new InetSocketAddress("1.2.3.4", 6881);
+            long packed = AddressUtil.pack(address);
+            Assert.assertFalse(cache.isPeerDead(address));
+            cache.markPeerDead(address);
+            Assert.assertTrue(cache.isPeerDead(address));
+            Assert.assertTrue(cache.isPeerDead(packed));
+            // dht节点和种子节点分开记录
+            Assert.assertFalse(cache.isNodeDead(packed));
+            cache.markNodeDead(packed);
+            Assert.assertTrue(cache.isNodeDead(packed));
+            Assert.assertEquals(2, cache.size());
+            for (int i = 0; i < 100000; i++) {
+                cache.markNodeDead(i);
+            }
+            Assert.assertEquals(65536, cache.size());
+            Assert.assertFalse(cache.isPeerDead(address));
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package cc.aguesuka.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * @author :yangmingyuxing
+ * 2026/10/18 21:00
+ */
+public class LongHashSetTest {
+
+    @Test
+    public void add() {
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextInt(50000) - 100;
+            Assert.assertEquals(expected.add(value), set.add(value));
+        }
+        Assert.assertEquals(expected.size(), set.size());
+        for (long i = -200; i < 60000; i++) {
+            Assert.assertEquals(expected.contains(i), set.contains(i));
+        }
+    }
+
+    @Test
+    public void address() {
+        InetSocketAddress address = new InetSocketAddress("255.1.128.7", 65535);
+        long packed = AddressUtil.pack(address);
+        Assert.assertEquals(0xff0180_07ffffL, packed);
+        Assert.assertEquals(address, AddressUtil.toAddress(packed));
+        Assert.assertEquals(AddressUtil.NONE, AddressUtil.pack(new InetSocketAddress("::1", 80)));
+    }
+}
@@ -0,0 +1,69 @@
+package cc.aguesuka.util.concurrent;
+
+import cc.aguesuka.util.inject.Injector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author :yangmingyuxing
+ * 2026/10/18 19:30
+ */
+public class WorkerPoolTest {
+
+    @Test
+    public void quota() throws Exception {
+        try (Injector injector = new Injector().addProperties("config.properties").addClass(WorkerPool.class).build()) {
+            WorkerPool pool = injector.instanceByClass(WorkerPool.class);
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            try (WorkerPool.Quota quota = pool.quota(3)) {
+                for (int i = 0; i < 30; i++) {
+                    futures.add(quota.run(() -> {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                        running.decrementAndGet();
+                    }));
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+            }
+            Assert.assertEquals(3, maxRunning.get());
+        }
+    }
+
+    @Test
+    public void close() throws Exception {
+        try (Injector injector = new Injector().addProperties("config.properties").addClass(WorkerPool.class).build()) {
+            WorkerPool pool = injector.instanceByClass(WorkerPool.class);
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch block = new CountDownLatch(1);
+            WorkerPool.Quota quota = pool.quota(1);
+            CompletableFuture<Void> first = quota.run(() -> {
+                started.countDown();
+                try {
+                    block.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            CompletableFuture<Void> second = quota.run(() -> {
+            });
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            quota.close();
+            block.countDown();
+            first.get(10, TimeUnit.SECONDS);
+            Assert.assertTrue(second.isCompletedExceptionally());
+        }
+    }
+}
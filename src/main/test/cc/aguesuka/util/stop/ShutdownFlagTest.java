@@ -0,0 +1,30 @@
+package cc.aguesuka.util.stop;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author :yangmingyuxing
+ * 2026/10/19 02:10
+ */
+public class ShutdownFlagTest {
+
+    @Test
+    public void unregister() {
+        ShutdownFlag flag = new ShutdownFlag();
+        AtomicInteger count = new AtomicInteger();
+        Runnable unregister = flag.onShutdown(count::incrementAndGet);
+        flag.onShutdown(count::incrementAndGet);
+        Assert.assertEquals(2, flag.listenerCount());
+        unregister.run();
+        unregister.run();
+        Assert.assertEquals(1, flag.listenerCount());
+        flag.shutdown();
+        Assert.assertEquals(1, count.get());
+        // 已经停止时立即执行
+        flag.onShutdown(count::incrementAndGet).run();
+        Assert.assertEquals(2, count.get());
+    }
+}
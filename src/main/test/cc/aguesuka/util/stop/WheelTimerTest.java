@@ -0,0 +1,35 @@
+package cc.aguesuka.util.stop;
+
+import cc.aguesuka.util.inject.Injector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author :yangmingyuxing
+ * 2026/10/18 14:52
+ */
+public class WheelTimerTest {
+
+    @Test
+    public void schedule() throws Exception {
+        try (Injector injector = new Injector().addProperties("config.properties").addClass(WheelTimer.class).build()) {
+            WheelTimer timer = injector.instanceByClass(WheelTimer.class);
+            CountDownLatch latch = new CountDownLatch(2);
+            AtomicBoolean cancelledRun = new AtomicBoolean();
+            long start = System.nanoTime();
+            timer.schedule(latch::countDown, 100, TimeUnit.MILLISECONDS);
+            // 超过一轮的任务
+            timer.schedule(latch::countDown, 6000, TimeUnit.MILLISECONDS);
+            WheelTimer.Task cancelled = timer.schedule(() -> cancelledRun.set(true), 50, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(cancelled.cancel());
+            Assert.assertFalse(cancelled.cancel());
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(6000));
+            Assert.assertFalse(cancelledRun.get());
+        }
+    }
+}